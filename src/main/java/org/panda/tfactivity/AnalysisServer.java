@@ -0,0 +1,191 @@
+package org.panda.tfactivity;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Long-lived server that runs analysis jobs against expression matrices and networks that stay in memory between
+ * jobs. It listens on a local port. A client sends a job as lines in the parameters file format, plus a line
+ * "directory = path" for the output directory, and ends the job with a line "run" or by closing its output. The server
+ * replies with a single line, either "OK" or "ERROR" followed by the error message, when the job is finished.
+ *
+ * Jobs run concurrently on a fixed number of threads. Jobs that cannot be queued are rejected with an error reply.
+ *
+ * @author Ozgun Babur
+ */
+public class AnalysisServer
+{
+	/**
+	 * The parameter line that gives the output directory of a job.
+	 */
+	public static final String DIRECTORY_KEY = "directory";
+
+	/**
+	 * The line that ends a job description.
+	 */
+	public static final String RUN_COMMAND = "run";
+
+	/**
+	 * How often the serve loop wakes up from waiting for a connection to check whether its thread is interrupted, in
+	 * milliseconds.
+	 */
+	static final int ACCEPT_TIMEOUT = 1000;
+
+	int port;
+	ResourceCache resources;
+	ExecutorService jobExecutor;
+	ExecutorService connectionExecutor;
+
+	/**
+	 * The listening socket while serving, closed by {@link #stop()}.
+	 */
+	volatile ServerSocket server;
+	volatile boolean stopped;
+
+	/**
+	 * @param port local port to listen
+	 * @param threads number of jobs to run concurrently
+	 * @param queueSize number of jobs that can wait for a thread
+	 * @param memoryBudget memory budget of the resident resources, in bytes
+	 */
+	public AnalysisServer(int port, int threads, int queueSize, long memoryBudget)
+	{
+		this.port = port;
+		this.resources = new ResourceCache(memoryBudget);
+		jobExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(queueSize));
+		connectionExecutor = Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Accepts connections until {@link #stop()} is called or the serving thread is interrupted.
+	 */
+	public void serve() throws IOException
+	{
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress()))
+		{
+			this.server = server;
+			server.setSoTimeout(ACCEPT_TIMEOUT);
+			System.out.println("Listening on port " + port);
+
+			while (!stopped && !Thread.currentThread().isInterrupted())
+			{
+				Socket socket;
+				try
+				{
+					socket = server.accept();
+				}
+				catch (SocketTimeoutException e)
+				{
+					continue;
+				}
+				catch (SocketException e)
+				{
+					// the socket is closed by stop
+					if (stopped) break;
+					throw e;
+				}
+				connectionExecutor.execute(() -> handle(socket));
+			}
+		}
+		finally
+		{
+			jobExecutor.shutdown();
+			connectionExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Stops accepting connections. Jobs that are already received run to completion.
+	 */
+	public void stop() throws IOException
+	{
+		stopped = true;
+		ServerSocket s = server;
+		if (s != null) s.close();
+	}
+
+	private void handle(Socket socket)
+	{
+		try (Socket s = socket;
+			BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+			Writer writer = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))
+		{
+			String reply;
+
+			try
+			{
+				Main main = readJob(reader);
+				Future<?> future = jobExecutor.submit(() ->
+				{
+					main.runAnalysis();
+					return null;
+				});
+				future.get();
+				reply = "OK";
+			}
+			catch (RejectedExecutionException e)
+			{
+				reply = "ERROR Server is busy";
+			}
+			catch (ExecutionException e)
+			{
+				reply = "ERROR " + e.getCause();
+			}
+			catch (Exception e)
+			{
+				reply = "ERROR " + e;
+			}
+
+			writer.write(reply + "\n");
+			writer.flush();
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads a job description and prepares the analysis for it.
+	 */
+	Main readJob(BufferedReader reader) throws IOException
+	{
+		String directory = null;
+		List<String> lines = new ArrayList<>();
+
+		for (String line = reader.readLine(); line != null && !line.trim().equals(RUN_COMMAND);
+			line = reader.readLine())
+		{
+			String[] t = line.split("=");
+			if (t.length == 2 && t[0].trim().equals(DIRECTORY_KEY)) directory = t[1].trim();
+			else if (!line.trim().isEmpty()) lines.add(line);
+		}
+
+		if (directory == null) throw new IllegalArgumentException("Job does not specify a " + DIRECTORY_KEY);
+
+		return new Main(directory, lines, resources);
+	}
+
+	/**
+	 * Starts the server.
+	 *
+	 * @param args port, number of concurrent jobs, and memory budget in megabytes
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		int port = Integer.parseInt(args[0]);
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		long budget = args.length > 2 ? Long.parseLong(args[2]) << 20 : Runtime.getRuntime().maxMemory() / 2;
+
+		new AnalysisServer(port, threads, threads * 10, budget).serve();
+	}
+}
@@ -0,0 +1,56 @@
+package org.panda.tfactivity;
+
+import org.panda.utility.statistics.Binomial;
+
+/**
+ * Precomputed binomial p-values for all (pos, neg) count pairs whose sum does not exceed a given maximum. The
+ * consensus sign decisions query the same small set of count pairs millions of times, so the values are calculated
+ * only once.
+ *
+ * @author Ozgun Babur
+ */
+public class BinomialPvalTable
+{
+	/**
+	 * Triangular table, indexed as [pos][neg].
+	 */
+	double[][] pvals;
+
+	/**
+	 * Maximum supported total of pos and neg.
+	 */
+	int max;
+
+	public BinomialPvalTable(int max)
+	{
+		this.max = max;
+		pvals = new double[max + 1][];
+
+		for (int pos = 0; pos <= max; pos++)
+		{
+			pvals[pos] = new double[max - pos + 1];
+
+			for (int neg = 0; neg <= max - pos; neg++)
+			{
+				pvals[pos][neg] = Binomial.getPval(pos, neg);
+			}
+		}
+	}
+
+	/**
+	 * Gets the p-value of observing the given counts.
+	 */
+	public double getPval(int pos, int neg)
+	{
+		if (pos + neg > max) return Binomial.getPval(pos, neg);
+		return pvals[pos][neg];
+	}
+
+	/**
+	 * Gets the most significant p-value that is possible with the given total count.
+	 */
+	public double getMaxPossiblePval(int total)
+	{
+		return getPval(total, 0);
+	}
+}
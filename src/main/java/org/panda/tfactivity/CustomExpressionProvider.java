@@ -3,7 +3,7 @@ package org.panda.tfactivity;
 import org.panda.resource.tcga.CustomExpressionReader;
 
 import java.io.FileNotFoundException;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Ozgun Babur
@@ -13,6 +13,6 @@ public class CustomExpressionProvider extends TCGAExpressionProvider
 	public CustomExpressionProvider(String file) throws FileNotFoundException
 	{
 		er = new CustomExpressionReader(file);
-		cache = new HashMap<>();
+		cache = new ConcurrentHashMap<>();
 	}
 }
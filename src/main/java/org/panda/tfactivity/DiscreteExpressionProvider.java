@@ -1,5 +1,7 @@
 package org.panda.tfactivity;
 
+import java.util.BitSet;
+
 /**
  * Gets the change in the expression of a gene.
  * 1: upregulated
@@ -11,4 +13,21 @@ package org.panda.tfactivity;
 public interface DiscreteExpressionProvider
 {
 	public Integer getChange(String gene);
+
+	/**
+	 * Marks the genes that have expression data. Providers that can tell this without calculating the change should
+	 * override this method.
+	 *
+	 * @param genes genes to check
+	 * @return bitset where the set positions correspond to the available genes in the given array
+	 */
+	default BitSet getAvailableGenes(String[] genes)
+	{
+		BitSet available = new BitSet(genes.length);
+		for (int i = 0; i < genes.length; i++)
+		{
+			if (getChange(genes[i]) != null) available.set(i);
+		}
+		return available;
+	}
 }
@@ -6,7 +6,9 @@ package org.panda.tfactivity;
 public enum ExpressionResourceType
 {
 	TCGA,
-	Custom;
+	Custom,
+	SingleCell,
+	Meta;
 
 	public static ExpressionResourceType get(String val)
 	{
@@ -0,0 +1,222 @@
+package org.panda.tfactivity;
+
+import java.util.Arrays;
+
+/**
+ * Estimates permutation p-values beyond the resolution of the permutation count, by fitting a generalized Pareto
+ * distribution (GPD) to the tail of the null statistics (Knijnenburg et al. 2009, Bioinformatics 25(12):i161). When the
+ * observed statistic is exceeded by enough null values, the empirical p-value is used as is. Otherwise the excesses of
+ * the largest null values over a tail threshold are fitted with probability weighted moments, and the fit is checked
+ * with the Anderson-Darling statistic against the critical values for estimated parameters (Choulakian and Stephens
+ * 2001, Technometrics 43(4):478). If the fit is rejected, the tail is shortened and fitted again. The statistics are
+ * integer counts, which are made continuous before fitting by spreading the tied values over unit intervals.
+ *
+ * @author Ozgun Babur
+ */
+public class GPDTail
+{
+	/**
+	 * Minimum number of exceedances to use the empirical p-value.
+	 */
+	static final int MIN_EXCEEDANCES = 10;
+
+	/**
+	 * Initial number of null values in the fitted tail.
+	 */
+	static final int INITIAL_TAIL_SIZE = 250;
+
+	/**
+	 * Smallest tail to try fitting.
+	 */
+	static final int MIN_TAIL_SIZE = 50;
+
+	/**
+	 * Shortening of the tail after a rejected fit.
+	 */
+	static final int TAIL_STEP = 10;
+
+	/**
+	 * Shapes of the table of the Anderson-Darling critical values, in the parametrization of the fit.
+	 */
+	static final double[] AD_SHAPES = {-0.9, -0.5, -0.2, -0.1, 0, 0.1, 0.2, 0.3, 0.4, 0.5};
+
+	/**
+	 * 5% critical values of the Anderson-Darling statistic for a GPD with estimated shape and scale, at the shapes
+	 * of the table (Choulakian and Stephens 2001, table 2).
+	 */
+	static final double[] AD_CRITICAL_VALUES = {0.771, 0.830, 0.903, 0.935, 0.974, 1.020, 1.074, 1.140, 1.221, 1.321};
+
+	/**
+	 * Gets the p-value of the observed statistic, where larger statistics are more significant.
+	 *
+	 * @param nulls buffer that contains the null statistics, not modified
+	 * @param from start of the null statistics in the buffer
+	 * @param n number of null statistics
+	 * @param observed the observed statistic
+	 * @return the p-value
+	 */
+	public static double getPValue(int[] nulls, int from, int n, double observed)
+	{
+		int exceed = 0;
+		for (int i = from; i < from + n; i++)
+		{
+			if (nulls[i] >= observed) exceed++;
+		}
+
+		if (exceed >= MIN_EXCEEDANCES) return exceed / (double) n;
+
+		// null statistics in descending order, made continuous so that ties do not spoil the fit
+		double[] sorted = new double[n];
+		for (int i = 0; i < n; i++)
+		{
+			sorted[i] = nulls[from + i];
+		}
+		Arrays.sort(sorted);
+		spreadTies(sorted);
+		reverse(sorted);
+
+		// with the integer values spread over unit intervals, P(X >= observed) becomes P(X' >= observed - 0.5)
+		observed -= 0.5;
+
+		for (int size = Math.min(INITIAL_TAIL_SIZE, n - 1); size >= MIN_TAIL_SIZE; size -= TAIL_STEP)
+		{
+			double thr = (sorted[size - 1] + sorted[size]) / 2;
+			if (observed <= thr) continue;
+
+			// excesses over the threshold, ascending
+			int m = 0;
+			while (m < n && sorted[m] > thr) m++;
+			if (m < MIN_EXCEEDANCES) continue;
+
+			double[] y = new double[m];
+			for (int i = 0; i < m; i++)
+			{
+				y[i] = sorted[m - 1 - i] - thr;
+			}
+
+			double[] fit = fit(y);
+			if (fit == null || andersonDarling(y, fit[0], fit[1]) > getCriticalValue(fit[0])) continue;
+
+			double p = (m / (double) n) * survival(observed - thr, fit[0], fit[1]);
+			if (p > 0) return p;
+		}
+
+		// no acceptable fit, or the fitted tail is bounded before the observed value
+		return (exceed + 1) / (double) (n + 1);
+	}
+
+	/**
+	 * Fits the GPD to the ascending excesses with probability weighted moments (Hosking and Wallis 1987).
+	 *
+	 * @return shape k and scale sigma, in the parametrization where the survival is (1 - k y / sigma)^(1 / k), or null
+	 * if the moments are degenerate. Positive shapes, which are light tails with an upper bound, are replaced with the
+	 * exponential tail, so that the extrapolation errs on the conservative side.
+	 */
+	static double[] fit(double[] y)
+	{
+		int n = y.length;
+		double a0 = 0;
+		double a1 = 0;
+		for (int i = 0; i < n; i++)
+		{
+			a0 += y[i];
+			a1 += y[i] * (n - 1 - i) / (double) (n - 1);
+		}
+		a0 /= n;
+		a1 /= n;
+
+		double d = a0 - 2 * a1;
+		if (d <= 0 || a0 <= 0) return null;
+
+		double k = a0 / d - 2;
+
+		// a bounded tail would give vanishing p-values past its end, use the exponential tail instead
+		if (k > 0) return new double[]{0, a0};
+
+		return new double[]{k, 2 * a0 * a1 / d};
+	}
+
+	/**
+	 * Gets the 5% critical value of the Anderson-Darling statistic for the fitted shape, interpolating the table
+	 * linearly. Shapes outside the table use the value at the nearest end.
+	 */
+	static double getCriticalValue(double k)
+	{
+		if (k <= AD_SHAPES[0]) return AD_CRITICAL_VALUES[0];
+
+		for (int i = 1; i < AD_SHAPES.length; i++)
+		{
+			if (k <= AD_SHAPES[i])
+			{
+				double f = (k - AD_SHAPES[i - 1]) / (AD_SHAPES[i] - AD_SHAPES[i - 1]);
+				return AD_CRITICAL_VALUES[i - 1] + f * (AD_CRITICAL_VALUES[i] - AD_CRITICAL_VALUES[i - 1]);
+			}
+		}
+		return AD_CRITICAL_VALUES[AD_CRITICAL_VALUES.length - 1];
+	}
+
+	/**
+	 * Survival function of the GPD.
+	 */
+	static double survival(double y, double k, double sigma)
+	{
+		if (y <= 0) return 1;
+		if (Math.abs(k) < 1E-9) return Math.exp(-y / sigma);
+
+		double base = 1 - k * y / sigma;
+		if (base <= 0) return 0;
+		return Math.pow(base, 1 / k);
+	}
+
+	/**
+	 * Anderson-Darling statistic of the ascending excesses against the fitted GPD.
+	 */
+	static double andersonDarling(double[] y, double k, double sigma)
+	{
+		int n = y.length;
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+		{
+			double lo = clamp(1 - survival(y[i], k, sigma));
+			double hi = clamp(1 - survival(y[n - 1 - i], k, sigma));
+			sum += (2 * i + 1) * (Math.log(lo) + Math.log(1 - hi));
+		}
+		return -n - sum / n;
+	}
+
+	private static double clamp(double cdf)
+	{
+		return Math.min(Math.max(cdf, 1E-12), 1 - 1E-12);
+	}
+
+	/**
+	 * Spreads each group of tied integer values evenly over the unit interval centered at their value. The array is
+	 * sorted ascending and stays sorted.
+	 */
+	static void spreadTies(double[] sorted)
+	{
+		for (int i = 0; i < sorted.length; )
+		{
+			int j = i;
+			while (j < sorted.length && sorted[j] == sorted[i]) j++;
+
+			double v = sorted[i];
+			int c = j - i;
+			for (int k = i; k < j; k++)
+			{
+				sorted[k] = v - 0.5 + (k - i + 0.5) / c;
+			}
+			i = j;
+		}
+	}
+
+	private static void reverse(double[] a)
+	{
+		for (int i = 0, j = a.length - 1; i < j; i++, j--)
+		{
+			double t = a[i];
+			a[i] = a[j];
+			a[j] = t;
+		}
+	}
+}
@@ -4,8 +4,18 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Main class for transcription factor activity prediction.
@@ -25,6 +35,11 @@ public class Main
 	public static final String DEFAULT_OUTPUT_FILENAME = "TF-activity-results.txt";
 	public static final String DEFAULT_GRAPH_FILENAME =  "TF-similarity-graph";
 
+	/**
+	 * The name of the JSON file that reports the metrics of the run.
+	 */
+	public static final String RUN_REPORT_FILENAME = "run-report.json";
+
 	/**
 	 * The directory that contains the parameters file.
 	 */
@@ -50,6 +65,11 @@ public class Main
 	 */
 	DiscreteExpressionProvider expProvider;
 
+	/**
+	 * Method to combine the datasets of a meta-analysis.
+	 */
+	MetaExpressionProvider.Method metaAnalysisMethod = MetaExpressionProvider.Method.Stouffer;
+
 	/**
 	 * Whether to consider the sign of the network relations.
 	 */
@@ -75,6 +95,105 @@ public class Main
 	 */
 	double jaccardSimilarityThrehsold = 0.2;
 
+	/**
+	 * Whether to find the similar TF pairs approximately with MinHash, for very large result lists.
+	 */
+	boolean approximateSimilarityGraph = false;
+
+	/**
+	 * Whether to remove the network targets that have no expression data, instead of counting them as unchanged.
+	 */
+	boolean pruneMissingTargets = false;
+
+	/**
+	 * Whether to extrapolate small permutation p-values by fitting the tail of the null statistics.
+	 */
+	boolean tailExtrapolation = false;
+
+	/**
+	 * Wall-clock time allowed for the permutations, in seconds. 0 means no limit, otherwise the random iterations is an
+	 * upper limit.
+	 */
+	double timeBudget = 0;
+
+	/**
+	 * Memory allowed for the permutation buffers, in megabytes. 0 means no limit.
+	 */
+	long maxMemory = 0;
+
+	/**
+	 * Whether to write the leave-one-target-out influence of the supporting targets of the reported TFs.
+	 */
+	boolean targetInfluence = false;
+
+	/**
+	 * Seed of the permutation stream, to make the permutations reproducible. Null for unseeded permutations.
+	 */
+	Long seed;
+
+	/**
+	 * Index of the permutation shard to run, starting from 0, and the number of shards. Shard count is 0 when the
+	 * permutations are not sharded.
+	 */
+	int shardIndex;
+	int shardCount = 0;
+
+	/**
+	 * Whether to get the permutation counts from the shard files in the directory instead of running permutations.
+	 */
+	boolean mergeShards = false;
+
+	/**
+	 * Whether to score the TF activities in each sample, instead of comparing two groups of samples.
+	 */
+	boolean perSampleScores = false;
+
+	/**
+	 * Compiled binary network file to load the network from, or to create if missing or outdated.
+	 */
+	String networkSnapshotFile;
+
+	/**
+	 * SIF file of the network. When not given, signed analysis uses the TCGA consensus network, and unsigned analysis
+	 * uses the merged PathwayCommons, TRRUST and TFactS network.
+	 */
+	String networkFile;
+
+	/**
+	 * Values of the FDR threshold to sweep, when multiple values are given.
+	 */
+	List<Double> fdrThrSweep;
+
+	/**
+	 * Values of the expression FDR threshold to sweep, when multiple values are given.
+	 */
+	List<Double> expressionFdrThrSweep;
+
+	/**
+	 * Values of the minimum targets to sweep, when multiple values are given.
+	 */
+	List<Integer> minimumTargetsSweep;
+
+	/**
+	 * Name of the directory that contains one subdirectory of results for each parameter combination of a sweep.
+	 */
+	public static final String SWEEP_DIRECTORY = "sweep";
+
+	/**
+	 * Lines of the parameters file, when they are given directly instead of being read from the directory.
+	 */
+	List<String> parameterLines;
+
+	/**
+	 * Whether the permutations of the last run stopped before the requested number, so the results are partial.
+	 */
+	boolean partial;
+
+	/**
+	 * Cache of the expression matrices and networks that are shared with other runs. Null when running alone.
+	 */
+	ResourceCache resources;
+
 	/**
 	 * Constructor that sets the working directory and initializes data structures.
 	 *
@@ -85,6 +204,20 @@ public class Main
 		this.directory = directory;
 	}
 
+	/**
+	 * Constructor for running with given parameters and shared resources, such as in the server mode.
+	 *
+	 * @param directory The directory where the output will be generated, and relative file paths are resolved.
+	 * @param parameterLines lines in the parameters file format
+	 * @param resources cache of shared resources, or null
+	 */
+	public Main(String directory, List<String> parameterLines, ResourceCache resources)
+	{
+		this.directory = directory;
+		this.parameterLines = parameterLines;
+		this.resources = resources;
+	}
+
 	/**
 	 * The method that does the job.
 	 *
@@ -94,37 +227,500 @@ public class Main
 	{
 		System.out.println("directory = " + directory);
 
-		// read the parameters file and set the variables
-		readParameters(directory);
+		List<String> lines = parameterLines != null ? parameterLines :
+			Files.readAllLines(Paths.get(directory + File.separator + PARAMETERS_FILENAME));
 
-		if (outputFile == null) outputFile = directory + "/" + DEFAULT_OUTPUT_FILENAME;
-		if (outputGraphFile == null) outputGraphFile= directory + "/" + DEFAULT_GRAPH_FILENAME;
+		// read the parameters other than expression first, as loading the network depends on them
+		readParameters(lines.stream(), EnumSet.complementOf(EXPRESSION_PARAMETERS), true);
+
+		setDefaultOutputFiles();
 
+		RunMetrics metrics = new RunMetrics();
+		StageDAG dag = new StageDAG(metrics);
 		NetworkLoader nl = new NetworkLoader();
+		nl.setMetrics(metrics);
+		nl.setPruneMissingTargets(pruneMissingTargets);
+
+		// parsing the expression and loading the network are independent
+		CompletableFuture<Void> expression = dag.stage("read expression", () ->
+		{
+			readParameters(lines.stream(), EXPRESSION_PARAMETERS, false);
+			return null;
+		});
+
+		if (perSampleScores && expResType != ExpressionResourceType.TCGA && expResType != ExpressionResourceType.Custom)
+		{
+			throw new IllegalArgumentException("Per sample scores are only available for TCGA or Custom expression");
+		}
+
+		if (perSampleScores)
+		{
+			CompletableFuture<Void> scored = runPerSampleScoring(dag, nl, expression);
+			dag.finish(scored);
+			dag.report(scored);
+			writeRunReport(metrics);
+			return;
+		}
+
+		CompletableFuture<List<ResultListToGraph.Row>> results;
+
+		if ((shardCount > 0 || mergeShards) && !signedAnalysis)
+		{
+			throw new IllegalArgumentException("Shards are only for the permutations of the signed analysis");
+		}
+		if ((shardCount > 0 || mergeShards) && targetInfluence)
+		{
+			throw new IllegalArgumentException("Target influence is not available for sharded permutations");
+		}
+		if (targetInfluence && !signedAnalysis)
+		{
+			throw new IllegalArgumentException("Target influence is only for the signed analysis");
+		}
+		if (targetInfluence && tailExtrapolation)
+		{
+			throw new IllegalArgumentException("Target influence is not available with tail extrapolation");
+		}
+		if (shardCount > 0 && seed == null)
+		{
+			throw new IllegalArgumentException("Sharded permutations need a seed");
+		}
+		if ((shardCount > 0 || mergeShards) && tailExtrapolation)
+		{
+			throw new IllegalArgumentException("Tail extrapolation is not available for sharded permutations");
+		}
+		if ((shardCount > 0 || mergeShards) && (fdrThrSweep != null || minimumTargetsSweep != null))
+		{
+			throw new IllegalArgumentException("Sharded permutations are not available for parameter sweeps");
+		}
+		if (targetInfluence && (fdrThrSweep != null || minimumTargetsSweep != null))
+		{
+			throw new IllegalArgumentException("Target influence is not available for parameter sweeps");
+		}
 
 		if (signedAnalysis)
 		{
 			// load the signed SIF network
-			Map<String, Map<String, Integer>> network = nl.loadSignedTCGAConsensus();
-			nl.cleanSigned(network, expProvider, minimumTargets);
+			CompletableFuture<Map<String, Map<String, Integer>>> loaded =
+				dag.stage("load network", () -> loadSignedNetwork(nl));
+
+			if (isSweep(dag, expression))
+			{
+				runSweep(dag.finish(loaded), null);
+				writeRunReport(metrics);
+				return;
+			}
+
+			CompletableFuture<SignedAnalysis> analysis = dag.stage("clean network", () ->
+			{
+				Map<String, Map<String, Integer>> network = loaded.join();
+				nl.cleanSigned(network, expProvider, minimumTargets);
+				SignedAnalysis sa = new SignedAnalysis(network, expProvider);
+				sa.setMetrics(metrics);
+				sa.setTailExtrapolation(tailExtrapolation);
+				sa.setSeed(seed);
+				setBudgets(sa);
+				sa.setCancelled(dag::isCancelled);
+				sa.setPartialCountsFile(directory + File.separator + (shardCount > 0 ?
+					PermutationCounts.getFileName(shardIndex, shardCount) : PermutationCounts.PARTIAL_FILENAME));
+				sa.setTargetInfluence(targetInfluence);
+				if (shardCount > 0) sa.setShard(shardIndex, shardCount);
+				return sa;
+			}, expression, loaded);
+
+			if (shardCount > 0)
+			{
+				// only count the permutations of the shard, to be merged later
+				CompletableFuture<Void> shard = dag.stage("permutation shard", () ->
+				{
+					analysis.join().calculateShardCounts(iterations).write(
+						directory + File.separator + PermutationCounts.getFileName(shardIndex, shardCount));
+					return null;
+				}, analysis);
+
+				dag.finish(shard);
+				dag.report(shard);
+				writeRunReport(metrics);
+				return;
+			}
+
+			// p-values and supporting targets are independent
+			CompletableFuture<Map<String, double[]>> pvals = dag.stage("p-values", () -> mergeShards ?
+				analysis.join().getPValues(PermutationCounts.merge(PermutationCounts.readShards(directory))) :
+				analysis.join().calculatePValues(iterations), analysis);
+			CompletableFuture<Map<String, List<String>[]>> support =
+				dag.stage("supporter genes", () -> analysis.join().getSupporterGenes(), analysis);
 
-			// run analysis
-			SignedAnalysis sa = new SignedAnalysis(network, expProvider);
-			sa.run(outputFile, iterations, fdrThr);
+			results = dag.stage("write results", () ->
+			{
+				SignedAnalysis sa = analysis.join();
+				if (sa.getStopReason() != null) partial = true;
+				sa.writeResults(outputFile, pvals.join(), support.join(), fdrThr);
+				if (targetInfluence) sa.writeInfluence(directory + File.separator + TargetInfluence.FILENAME);
+				return sa.getResults();
+			}, pvals, support);
 		}
 		else
 		{
 			// load the unsigned network
-			Map<String, Set<String>> network = nl.loadUnsigned();
-			nl.cleanUnsigned(network, expProvider, minimumTargets);
+			CompletableFuture<Map<String, Set<String>>> loaded =
+				dag.stage("load network", () -> loadUnsignedNetwork(nl));
+
+			if (isSweep(dag, expression))
+			{
+				runSweep(null, dag.finish(loaded));
+				writeRunReport(metrics);
+				return;
+			}
+
+			CompletableFuture<UnsignedAnalysis> analysis = dag.stage("clean network", () ->
+			{
+				Map<String, Set<String>> network = loaded.join();
+				nl.cleanUnsigned(network, expProvider, minimumTargets);
+				UnsignedAnalysis ua = new UnsignedAnalysis(network, expProvider);
+				ua.setMetrics(metrics);
+				return ua;
+			}, expression, loaded);
+
+			// p-values and supporting targets are independent
+			CompletableFuture<Map<String, Double>> pvals =
+				dag.stage("p-values", () -> analysis.join().calculatePValues(), analysis);
+			CompletableFuture<Map<String, List<String>>> support =
+				dag.stage("supporter genes", () -> analysis.join().getSupporterGenes(), analysis);
+
+			results = dag.stage("write results", () ->
+			{
+				UnsignedAnalysis ua = analysis.join();
+				ua.writeResults(outputFile, pvals.join(), support.join(), fdrThr);
+				return ua.getResults();
+			}, pvals, support);
+		}
+
+		// results are handed to the graph in memory instead of reading the result file back
+		CompletableFuture<Void> graph = dag.stage("draw graph", () ->
+		{
+			ResultListToGraph rltg = new ResultListToGraph(results.join(), jaccardSimilarityThrehsold);
+			rltg.setApproximate(approximateSimilarityGraph);
+			rltg.draw(outputGraphFile);
+			return null;
+		}, results);
+
+		dag.finish(graph);
+		dag.report(graph);
+
+		writeRunReport(metrics);
+	}
+
+	/**
+	 * Adds the stages that score the TFs in each sample and write the score and p-value matrices to the directory.
+	 * Edges of an unsigned network are taken as positive.
+	 *
+	 * @return future of the last stage
+	 */
+	private CompletableFuture<Void> runPerSampleScoring(StageDAG dag, NetworkLoader nl,
+		CompletableFuture<Void> expression)
+	{
+		CompletableFuture<Map<String, Map<String, Integer>>> loaded = dag.stage("load network", () ->
+		{
+			if (signedAnalysis) return loadSignedNetwork(nl);
+
+			Map<String, Map<String, Integer>> network = new HashMap<>();
+			loadUnsignedNetwork(nl).forEach((tf, targets) ->
+				network.put(tf, targets.stream().collect(Collectors.toMap(t -> t, t -> 1))));
+			return network;
+		});
+
+		CompletableFuture<SampleActivityScorer> standardized = dag.stage("standardize expression", () ->
+			new SampleActivityScorer(((TCGAExpressionProvider) expProvider).er), expression);
+
+		return dag.stage("score samples", () ->
+		{
+			SampleActivityScorer scorer = standardized.join();
+			scorer.score(loaded.join(), minimumTargets);
+			scorer.write(directory + File.separator + SampleActivityScorer.SCORES_FILENAME,
+				directory + File.separator + SampleActivityScorer.PVALS_FILENAME);
+			return null;
+		}, standardized, loaded);
+	}
+
+	/**
+	 * Gets the name of the run report file. Each shard has its own report, as the shards of a run can run at the same
+	 * time in the same directory.
+	 */
+	String getRunReportFileName()
+	{
+		if (shardCount == 0) return RUN_REPORT_FILENAME;
+		return RUN_REPORT_FILENAME.replace(".json", "-" + (shardIndex + 1) + "-of-" + shardCount + ".json");
+	}
+
+	/**
+	 * Adds the cache statistics of the expression provider to the metrics, and writes them to the run report file.
+	 */
+	private void writeRunReport(RunMetrics metrics) throws IOException
+	{
+		metrics.record("signed", signedAnalysis);
+		metrics.record("iterations", iterations);
+		metrics.record("partial", partial);
+		if (expProvider instanceof TCGAExpressionProvider)
+		{
+			((TCGAExpressionProvider) expProvider).recordCacheMetrics(metrics);
+		}
+		metrics.writeJSON(directory + File.separator + getRunReportFileName());
+	}
+
+	/**
+	 * Waits for the expression parameters to be read, and checks whether multiple values are given for any of the
+	 * swept parameters.
+	 */
+	private boolean isSweep(StageDAG dag, CompletableFuture<Void> expression) throws IOException
+	{
+		dag.await(expression);
+
+		// the expression threshold sweep is only known after the expression parameters are read
+		if ((shardCount > 0 || mergeShards) && expressionFdrThrSweep != null)
+		{
+			throw new IllegalArgumentException("Sharded permutations are not available for parameter sweeps");
+		}
+		if (targetInfluence && expressionFdrThrSweep != null)
+		{
+			throw new IllegalArgumentException("Target influence is not available for parameter sweeps");
+		}
+		return fdrThrSweep != null || expressionFdrThrSweep != null || minimumTargetsSweep != null;
+	}
+
+	/**
+	 * Runs the analysis for all combinations of the swept parameters. Differential expression p-values are calculated
+	 * once. The network is cleaned once per minimum targets value, and the permutations or the unsigned tests are run
+	 * once per expression threshold and minimum targets value, since the shuffled genes and the tested universe come
+	 * from the cleaned network. So each grid point gives the same result as the equivalent standalone run. The FDR
+	 * threshold only filters the TFs, so it is applied afterwards.
+	 *
+	 * @param signedNetwork the loaded network for signed analysis, otherwise null
+	 * @param unsignedNetwork the loaded network for unsigned analysis, otherwise null
+	 * @throws IOException
+	 */
+	void runSweep(Map<String, Map<String, Integer>> signedNetwork, Map<String, Set<String>> unsignedNetwork)
+		throws IOException
+	{
+		List<Double> fdrThrs = fdrThrSweep == null ? Collections.singletonList(fdrThr) : fdrThrSweep;
+		List<Integer> minTargets = minimumTargetsSweep == null ?
+			Collections.singletonList(minimumTargets) : minimumTargetsSweep;
+
+		NetworkLoader nl = new NetworkLoader();
+		nl.setPruneMissingTargets(pruneMissingTargets);
+
+		// the cleaned network of each minimum targets value
+		Map<Integer, Map<String, Map<String, Integer>>> signedNetworks = new HashMap<>();
+		Map<Integer, Map<String, Set<String>>> unsignedNetworks = new HashMap<>();
 
-			// run analysis
-			UnsignedAnalysis ua = new UnsignedAnalysis(network, expProvider);
-			ua.run(outputFile, fdrThr);
+		for (int minTarget : minTargets)
+		{
+			if (signedAnalysis)
+			{
+				Map<String, Map<String, Integer>> network = new HashMap<>();
+				signedNetwork.forEach((tf, targets) -> network.put(tf, new HashMap<>(targets)));
+				nl.cleanSigned(network, expProvider, minTarget);
+				signedNetworks.put(minTarget, network);
+			}
+			else
+			{
+				Map<String, Set<String>> network = new HashMap<>();
+				unsignedNetwork.forEach((tf, targets) -> network.put(tf, new HashSet<>(targets)));
+				nl.cleanUnsigned(network, expProvider, minTarget);
+				unsignedNetworks.put(minTarget, network);
+			}
 		}
 
-		ResultListToGraph rltg = new ResultListToGraph(outputFile, jaccardSimilarityThrehsold);
-		rltg.draw(outputGraphFile);
+		// null means the expression threshold that is already set
+		List<Double> expFdrThrs = expressionFdrThrSweep == null ?
+			Collections.singletonList(null) : expressionFdrThrSweep;
+
+		for (Double expFdrThr : expFdrThrs)
+		{
+			if (expFdrThr != null)
+			{
+				if (expProvider instanceof SparseExpressionProvider)
+				{
+					((SparseExpressionProvider) expProvider).setFDRThr(expFdrThr);
+				}
+				else if (expProvider instanceof MetaExpressionProvider)
+				{
+					((MetaExpressionProvider) expProvider).setFDRThr(expFdrThr);
+				}
+				else ((TCGAExpressionProvider) expProvider).setFDRThr(expFdrThr);
+			}
+
+			for (int minTarget : minTargets)
+			{
+				SignedAnalysis sa = null;
+				UnsignedAnalysis ua = null;
+				Map<String, double[]> signedPvals = null;
+				Map<String, Double> unsignedPvals = null;
+
+				if (signedAnalysis)
+				{
+					sa = new SignedAnalysis(signedNetworks.get(minTarget), expProvider);
+					sa.setTailExtrapolation(tailExtrapolation);
+					sa.setSeed(seed);
+					setBudgets(sa);
+					Files.createDirectories(Paths.get(directory + File.separator + SWEEP_DIRECTORY));
+					sa.setPartialCountsFile(directory + File.separator + SWEEP_DIRECTORY + File.separator +
+						(expFdrThr == null ? "" : "expression-fdr-" + expFdrThr + "_") + "minimum-targets-" + minTarget +
+						"_" + PermutationCounts.PARTIAL_FILENAME);
+					signedPvals = sa.calculatePValues(iterations);
+					if (sa.getStopReason() != null) partial = true;
+				}
+				else
+				{
+					ua = new UnsignedAnalysis(unsignedNetworks.get(minTarget), expProvider);
+					unsignedPvals = ua.calculatePValues();
+				}
+
+				for (double fdr : fdrThrs)
+				{
+					String dir = directory + File.separator + SWEEP_DIRECTORY + File.separator + "fdr-" + fdr +
+						(expFdrThr == null ? "" : "_expression-fdr-" + expFdrThr) + "_minimum-targets-" + minTarget;
+					Files.createDirectories(Paths.get(dir));
+
+					String out = dir + File.separator + DEFAULT_OUTPUT_FILENAME;
+					List<ResultListToGraph.Row> results;
+
+					if (signedAnalysis)
+					{
+						sa.writeResults(out, signedPvals, fdr);
+						results = sa.getResults();
+					}
+					else
+					{
+						ua.writeResults(out, unsignedPvals, fdr);
+						results = ua.getResults();
+					}
+
+					ResultListToGraph rltg = new ResultListToGraph(results, jaccardSimilarityThrehsold);
+					rltg.setApproximate(approximateSimilarityGraph);
+					rltg.draw(dir + File.separator + DEFAULT_GRAPH_FILENAME);
+				}
+			}
+		}
+	}
+
+	private void setBudgets(SignedAnalysis sa)
+	{
+		sa.setTimeBudget((long) (timeBudget * 1E9));
+		sa.setMaxMemory(maxMemory << 20);
+	}
+
+	/**
+	 * Parses a comma separated list of values.
+	 */
+	private static <T> List<T> parseList(String value, Function<String, T> parser)
+	{
+		List<T> list = new ArrayList<>();
+		for (String s : value.split(","))
+		{
+			list.add(parser.apply(s.trim()));
+		}
+		return list;
+	}
+
+	/**
+	 * Runs only the parts of the analysis whose inputs changed since the last run in the directory, according to the
+	 * run manifest. If only the graph parameters changed, the graph is drawn again from the existing result file.
+	 *
+	 * @return what was run
+	 * @throws IOException
+	 */
+	public RunType runIncremental() throws IOException
+	{
+		if (parameterLines == null)
+		{
+			parameterLines = Files.readAllLines(Paths.get(directory + File.separator + PARAMETERS_FILENAME));
+		}
+
+		RunManifest previous = RunManifest.read(directory);
+		RunManifest current = new RunManifest(directory, parameterLines);
+
+		readParameters(parameterLines.stream(), GRAPH_PARAMETERS, false);
+		setDefaultOutputFiles();
+
+		RunType type;
+
+		if (current.sameAnalysis(previous) && Files.exists(Paths.get(outputFile)))
+		{
+			if (current.sameGraph(previous) && Files.exists(Paths.get(outputGraphFile + ".sif")))
+			{
+				System.out.println("Unchanged, skipping directory = " + directory);
+				return RunType.SKIPPED;
+			}
+
+			System.out.println("Only graph parameters changed, redrawing graph in directory = " + directory);
+			ResultListToGraph rltg = new ResultListToGraph(outputFile, jaccardSimilarityThrehsold);
+			rltg.setApproximate(approximateSimilarityGraph);
+			rltg.draw(outputGraphFile);
+			type = RunType.GRAPH_ONLY;
+		}
+		else
+		{
+			runAnalysis();
+			type = RunType.FULL;
+		}
+
+		// a partial run is not recorded, so that the next incremental run repeats it
+		if (partial)
+		{
+			System.out.println("Permutations stopped early, not writing the manifest in directory = " + directory);
+			return type;
+		}
+
+		// hash again, as a network snapshot may have been compiled during the run
+		new RunManifest(directory, parameterLines).write(directory);
+		return type;
+	}
+
+	/**
+	 * What an incremental run did.
+	 */
+	public enum RunType
+	{
+		FULL,
+		GRAPH_ONLY,
+		SKIPPED
+	}
+
+	private void setDefaultOutputFiles()
+	{
+		if (outputFile == null) outputFile = directory + "/" + DEFAULT_OUTPUT_FILENAME;
+		if (outputGraphFile == null) outputGraphFile= directory + "/" + DEFAULT_GRAPH_FILENAME;
+	}
+
+	private Map<String, Map<String, Integer>> loadSignedNetwork(NetworkLoader nl) throws IOException
+	{
+		String sif = networkFile == null ? NetworkLoader.SIGNED_TCGA_CONSENSUS_FILE : networkFile;
+
+		NetworkSnapshot.NetworkSupplier<Map<String, Map<String, Integer>>> loader = () ->
+			networkSnapshotFile == null ? nl.loadSignedSIF(sif) : nl.loadSignedSIF(sif, networkSnapshotFile);
+
+		if (resources == null) return loader.load();
+		return resources.getSignedNetwork(sif, Collections.singletonList(sif), loader);
+	}
+
+	private Map<String, Set<String>> loadUnsignedNetwork(NetworkLoader nl) throws IOException
+	{
+		NetworkSnapshot.NetworkSupplier<Map<String, Set<String>>> loader;
+
+		if (networkFile == null)
+		{
+			loader = () -> networkSnapshotFile == null ? nl.loadUnsigned() : nl.loadUnsigned(networkSnapshotFile);
+		}
+		else
+		{
+			loader = () -> networkSnapshotFile == null ?
+				nl.loadUnsignedSIF(networkFile) : nl.loadUnsignedSIF(networkFile, networkSnapshotFile);
+		}
+
+		if (resources == null) return loader.load();
+
+		List<String> sources = networkFile == null ? Collections.emptyList() : Collections.singletonList(networkFile);
+		return resources.getUnsignedNetwork(String.valueOf(networkFile), sources, loader);
 	}
 
 	/**
@@ -134,8 +730,18 @@ public class Main
 	 */
 	void readParameters(String dir) throws IOException
 	{
-		Files.lines(Paths.get(dir + File.separator + PARAMETERS_FILENAME)).
-			filter(l -> !l.startsWith("#")).map(l -> l.split("=")).
+		readParameters(Files.lines(Paths.get(dir + File.separator + PARAMETERS_FILENAME)), null, true);
+	}
+
+	/**
+	 * Configures parameters from the lines in the parameters file format.
+	 * @param lines the parameter lines
+	 * @param only the parameters to read, or null to read all
+	 * @param reportUnknown whether to report the unknown parameters
+	 */
+	void readParameters(Stream<String> lines, Set<Parameter> only, boolean reportUnknown)
+	{
+		lines.filter(l -> !l.startsWith("#")).map(l -> l.split("=")).
 			forEach(t ->
 			{
 				// the token before "=" has to be one of the values in the Parameters enum
@@ -143,32 +749,96 @@ public class Main
 
 				if (param != null)
 				{
-					try
-					{
-						// the specific Parameter enum knows how to configure the Main class using the parameter value
-						param.reader.read(t[1].trim(), this);
-					}
-					catch (IOException e)
-					{
-						throw new RuntimeException(e);
-					}
+					if (only == null || only.contains(param)) read(param, t[1].trim());
 				}
-				else
+				else if (reportUnknown)
 				{
 					System.err.println("Unknown parameter = " + t[0].trim());
 				}
 			});
 	}
 
+	private void read(Parameter param, String value)
+	{
+		try
+		{
+			// the specific Parameter enum knows how to configure the Main class using the parameter value
+			param.reader.read(value, this);
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Parameters that are enough for drawing the graph from an existing result file.
+	 */
+	static final Set<Parameter> GRAPH_PARAMETERS = EnumSet.of(Parameter.OUTPUT_FILE,
+		Parameter.JACCARD_SIMILARITY_THRESHOLD, Parameter.APPROXIMATE_SIMILARITY_GRAPH);
+
+	/**
+	 * Parameters that load the expression data or depend on it.
+	 */
+	static final EnumSet<Parameter> EXPRESSION_PARAMETERS = EnumSet.of(Parameter.EXPRESSION_FILE,
+		Parameter.GROUPS_FILE, Parameter.EXPRESSION_PVAL_THRESHOLD, Parameter.EXPRESSION_FDR_THRESHOLD);
+
 	enum Parameter
 	{
 		OUTPUT_FILE((value, main) -> main.outputFile = value),
 		EXPRESSION_RESOURCE_TYPE((value, main) -> main.expResType = ExpressionResourceType.get(value)),
+		META_ANALYSIS_METHOD((value, main) ->
+		{
+			main.metaAnalysisMethod = MetaExpressionProvider.Method.get(value);
+
+			// the datasets may already be combined if the method comes after the expression file
+			if (main.expProvider instanceof MetaExpressionProvider)
+			{
+				((MetaExpressionProvider) main.expProvider).setMethod(main.metaAnalysisMethod);
+			}
+		}),
 		CONSIDER_EDGE_SIGNS((value, main) -> main.signedAnalysis = Boolean.valueOf(value)),
 		RANDOM_ITERATIONS((value, main) -> main.iterations = Integer.valueOf(value)),
-		FDR_THRESHOLD((value, main) -> main.fdrThr = Double.valueOf(value)),
-		MINIMUM_TARGETS((value, main) -> main.minimumTargets = Integer.valueOf(value)),
+		FDR_THRESHOLD((value, main) ->
+		{
+			List<Double> list = parseList(value, Double::valueOf);
+			main.fdrThr = list.get(0);
+			if (list.size() > 1) main.fdrThrSweep = list;
+		}),
+		MINIMUM_TARGETS((value, main) ->
+		{
+			List<Integer> list = parseList(value, Integer::valueOf);
+			main.minimumTargets = list.get(0);
+			if (list.size() > 1) main.minimumTargetsSweep = list;
+		}),
 		JACCARD_SIMILARITY_THRESHOLD((value, main) -> main.jaccardSimilarityThrehsold= Double.valueOf(value)),
+		NETWORK_FILE((value, main) -> main.networkFile = main.adjustLocation(value, main.directory)),
+		NETWORK_SNAPSHOT((value, main) -> main.networkSnapshotFile = main.adjustLocation(value, main.directory)),
+		APPROXIMATE_SIMILARITY_GRAPH((value, main) -> main.approximateSimilarityGraph = Boolean.valueOf(value)),
+		PRUNE_MISSING_TARGETS((value, main) -> main.pruneMissingTargets = Boolean.valueOf(value)),
+		TAIL_EXTRAPOLATION((value, main) -> main.tailExtrapolation = Boolean.valueOf(value)),
+		TIME_BUDGET((value, main) -> main.timeBudget = Double.valueOf(value)),
+		MAX_MEMORY((value, main) -> main.maxMemory = Long.valueOf(value)),
+		TARGET_INFLUENCE((value, main) -> main.targetInfluence = Boolean.valueOf(value)),
+		SEED((value, main) -> main.seed = Long.valueOf(value)),
+		SHARD((value, main) ->
+		{
+			if (value.equals("merge"))
+			{
+				main.mergeShards = true;
+				return;
+			}
+
+			String[] t = value.split("/");
+			main.shardIndex = Integer.parseInt(t[0].trim()) - 1;
+			main.shardCount = Integer.parseInt(t[1].trim());
+
+			if (main.shardIndex < 0 || main.shardIndex >= main.shardCount)
+			{
+				throw new IllegalArgumentException("Invalid shard: " + value);
+			}
+		}),
+		PER_SAMPLE_SCORES((value, main) -> main.perSampleScores = Boolean.valueOf(value)),
 
 		EXPRESSION_FILE((value, main) ->
 		{
@@ -178,12 +848,25 @@ public class Main
 			{
 				case TCGA:
 				{
-					main.expProvider = new TCGAExpressionProvider(value);
+					main.expProvider = main.resources == null ? new TCGAExpressionProvider(value) :
+						new TCGAExpressionProvider(main.resources.getExpressionReader(value, main.expResType));
 					break;
 				}
 				case Custom:
 				{
-					main.expProvider = new CustomExpressionProvider(value);
+					main.expProvider = main.resources == null ? new CustomExpressionProvider(value) :
+						new TCGAExpressionProvider(main.resources.getExpressionReader(value, main.expResType));
+					break;
+				}
+				case SingleCell:
+				{
+					main.expProvider = main.resources == null ? new SparseExpressionProvider(value) :
+						new SparseExpressionProvider(main.resources.getSparseExpressionMatrix(value));
+					break;
+				}
+				case Meta:
+				{
+					main.expProvider = new MetaExpressionProvider(value, main.metaAnalysisMethod, main.resources);
 					break;
 				}
 			}
@@ -203,6 +886,15 @@ public class Main
 					((TCGAExpressionProvider) main.expProvider).setTwo(two);
 					break;
 				}
+				case SingleCell:
+				{
+					SparseExpressionProvider sp = (SparseExpressionProvider) main.expProvider;
+					TwoGroupsSampleNames two = new TwoGroupsSampleNames(value);
+					two.filterOutMissingSamples(sp.getMatrix().getCellSet());
+					sp.setTwo(two);
+					break;
+				}
+				case Meta: throw new RuntimeException("Groups of a meta-analysis are given in the dataset list file");
 				default: throw new RuntimeException("Not implemented yet");
 			}
 		}),
@@ -216,6 +908,16 @@ public class Main
 					((TCGAExpressionProvider) main.expProvider).setPvalThr(Double.valueOf(value));
 					break;
 				}
+				case SingleCell:
+				{
+					((SparseExpressionProvider) main.expProvider).setPvalThr(Double.valueOf(value));
+					break;
+				}
+				case Meta:
+				{
+					((MetaExpressionProvider) main.expProvider).setPvalThr(Double.valueOf(value));
+					break;
+				}
 				case Custom: throw new RuntimeException("Not implemented yet");
 			}
 		}),
@@ -227,7 +929,23 @@ public class Main
 				case TCGA:
 				case Custom:
 				{
-					((TCGAExpressionProvider) main.expProvider).setFDRThr(Double.valueOf(value));
+					List<Double> list = parseList(value, Double::valueOf);
+					if (list.size() > 1) main.expressionFdrThrSweep = list;
+					((TCGAExpressionProvider) main.expProvider).setFDRThr(list.get(0));
+					break;
+				}
+				case SingleCell:
+				{
+					List<Double> list = parseList(value, Double::valueOf);
+					if (list.size() > 1) main.expressionFdrThrSweep = list;
+					((SparseExpressionProvider) main.expProvider).setFDRThr(list.get(0));
+					break;
+				}
+				case Meta:
+				{
+					List<Double> list = parseList(value, Double::valueOf);
+					if (list.size() > 1) main.expressionFdrThrSweep = list;
+					((MetaExpressionProvider) main.expProvider).setFDRThr(list.get(0));
 					break;
 				}
 				default: throw new RuntimeException("Not implemented yet");
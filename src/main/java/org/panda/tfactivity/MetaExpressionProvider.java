@@ -0,0 +1,444 @@
+package org.panda.tfactivity;
+
+import org.panda.resource.tcga.ExpressionReader;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Expression provider that combines the same contrast in multiple datasets. Each dataset is loaded and tested for
+ * differential expression on its own, in parallel, and only the p-values and directions of the genes are kept, so the
+ * expression matrices are released once their statistics are extracted. The one-sided p-values of a gene in the
+ * datasets that have it are combined into a single p-value and direction, with the Stouffer or the Fisher method.
+ *
+ * The datasets are listed in a tab-delimited file, one dataset per line, as the resource type (TCGA or Custom), the
+ * expression file and the groups file. Relative paths are resolved against the directory of the list file.
+ *
+ * @author Ozgun Babur
+ */
+public class MetaExpressionProvider implements DiscreteExpressionProvider
+{
+	public enum Method
+	{
+		/**
+		 * Sums the z-scores of the datasets, weighted by the square root of their sample sizes.
+		 */
+		Stouffer,
+
+		/**
+		 * Sums the log p-values of each direction separately, and takes the more significant direction.
+		 */
+		Fisher;
+
+		public static Method get(String val)
+		{
+			for (Method method : values())
+			{
+				if (method.toString().equalsIgnoreCase(val)) return method;
+			}
+			throw new IllegalArgumentException("Unknown meta-analysis method: " + val);
+		}
+	}
+
+	Method method;
+	double pvalThr;
+
+	/**
+	 * The FDR that the p-value threshold is matched to, or null if the p-value threshold is given directly.
+	 */
+	Double fdrThr;
+
+	/**
+	 * Genes that are in at least one of the datasets, in ascending order.
+	 */
+	String[] genes;
+	Map<String, Integer> geneIndex;
+
+	/**
+	 * One-sided p-values of the genes in each dataset for the upregulation and the downregulation, aligned to the gene
+	 * array. NaN if the gene is not tested in the dataset.
+	 */
+	double[][] pUp;
+	double[][] pDown;
+
+	/**
+	 * Weights of the datasets for the Stouffer method.
+	 */
+	double[] weights;
+
+	/**
+	 * Combined p-values of the genes, in the order of the gene array. NaN if the gene cannot be tested in any dataset.
+	 */
+	double[] pvals;
+
+	/**
+	 * Combined direction of the change of the genes, in the order of the gene array.
+	 */
+	byte[] directions;
+
+	/**
+	 * Reads and combines the datasets in the given list file.
+	 *
+	 * @param listFile the dataset list file
+	 * @param method the method to combine the p-values, which can be changed later
+	 * @param resources cache of shared resources to get the expression matrices from, or null
+	 */
+	public MetaExpressionProvider(String listFile, Method method, ResourceCache resources) throws IOException
+	{
+		this.method = method;
+
+		List<Dataset> datasets = readDatasets(listFile);
+		if (datasets.isEmpty()) throw new IOException("No datasets in " + listFile);
+
+		List<DatasetStats> stats;
+		try
+		{
+			stats = datasets.parallelStream().map(d -> d.extract(resources)).collect(Collectors.toList());
+		}
+		catch (UncheckedIOException e)
+		{
+			throw e.getCause();
+		}
+
+		align(stats);
+		combine();
+	}
+
+	/**
+	 * Combines the p-values of the datasets again with the given method. A p-value threshold matched to an FDR is
+	 * matched again to the new p-values.
+	 */
+	public void setMethod(Method method)
+	{
+		if (method == this.method) return;
+
+		this.method = method;
+		combine();
+		if (fdrThr != null) setFDRThr(fdrThr);
+	}
+
+	public void setPvalThr(double pvalThr)
+	{
+		this.pvalThr = pvalThr;
+		fdrThr = null;
+	}
+
+	public void setFDRThr(double thr)
+	{
+		double[] valid = Arrays.stream(pvals).filter(p -> !Double.isNaN(p)).toArray();
+		setPvalThr(PrimitiveFDR.getPValueThreshold(valid, null, thr));
+		fdrThr = thr;
+		System.out.println("pval thr matching given fdr = " + pvalThr);
+	}
+
+	@Override
+	public BitSet getAvailableGenes(String[] genes)
+	{
+		BitSet available = new BitSet(genes.length);
+		for (int i = 0; i < genes.length; i++)
+		{
+			if (geneIndex.containsKey(genes[i])) available.set(i);
+		}
+		return available;
+	}
+
+	@Override
+	public Integer getChange(String gene)
+	{
+		// genes that are in none of the datasets count as unchanged, as in the other providers
+		Integer i = geneIndex.get(gene);
+		if (i == null) return 0;
+
+		double p = pvals[i];
+		if (Double.isNaN(p) || p > pvalThr) return 0;
+		return (int) directions[i];
+	}
+
+	static List<Dataset> readDatasets(String listFile) throws IOException
+	{
+		Path dir = Paths.get(listFile).toAbsolutePath().getParent();
+		List<Dataset> datasets = new ArrayList<>();
+
+		for (String line : Files.readAllLines(Paths.get(listFile)))
+		{
+			if (line.trim().isEmpty() || line.startsWith("#")) continue;
+
+			String[] t = line.split("\t");
+			if (t.length < 3) throw new IOException("Expected type, expression file and groups file in: " + line);
+
+			ExpressionResourceType type = ExpressionResourceType.get(t[0].trim());
+			if (type != ExpressionResourceType.TCGA && type != ExpressionResourceType.Custom)
+			{
+				throw new IOException("Unsupported dataset type for meta-analysis: " + t[0]);
+			}
+			datasets.add(new Dataset(type, dir.resolve(t[1].trim()).toString(), dir.resolve(t[2].trim()).toString()));
+		}
+		return datasets;
+	}
+
+	/**
+	 * Aligns the p-values of the datasets to the union of their genes.
+	 */
+	private void align(List<DatasetStats> stats)
+	{
+		genes = stats.stream().map(s -> s.genes).flatMap(Arrays::stream).distinct().sorted().toArray(String[]::new);
+		geneIndex = new HashMap<>();
+		for (int i = 0; i < genes.length; i++)
+		{
+			geneIndex.put(genes[i], i);
+		}
+
+		int k = stats.size();
+
+		pUp = new double[k][genes.length];
+		pDown = new double[k][genes.length];
+		weights = new double[k];
+
+		for (int d = 0; d < k; d++)
+		{
+			DatasetStats s = stats.get(d);
+			weights[d] = Math.sqrt(s.sampleSize);
+			Arrays.fill(pUp[d], Double.NaN);
+			Arrays.fill(pDown[d], Double.NaN);
+
+			for (int i = 0; i < s.genes.length; i++)
+			{
+				double p = s.pvals[i];
+				if (Double.isNaN(p)) continue;
+
+				// an underflowed p-value of 0 would make the log and the z-score infinite
+				int g = geneIndex.get(s.genes[i]);
+				pUp[d][g] = clamp(s.directions[i] > 0 ? p / 2 : 1 - p / 2);
+				pDown[d][g] = clamp(s.directions[i] > 0 ? 1 - p / 2 : p / 2);
+			}
+		}
+	}
+
+	/**
+	 * Limits the one-sided p-value to [Double.MIN_VALUE, 1].
+	 */
+	private static double clamp(double p)
+	{
+		return Math.max(Double.MIN_VALUE, Math.min(1, p));
+	}
+
+	/**
+	 * Combines the aligned p-values of the datasets with the current method.
+	 */
+	private void combine()
+	{
+		pvals = new double[genes.length];
+		directions = new byte[genes.length];
+
+		for (int g = 0; g < genes.length; g++)
+		{
+			switch (method)
+			{
+				case Stouffer: combineStouffer(g); break;
+				case Fisher: combineFisher(g); break;
+				default: throw new IllegalStateException("Unknown meta-analysis method: " + method);
+			}
+		}
+	}
+
+	private void combineStouffer(int g)
+	{
+		double sum = 0;
+		double sumSq = 0;
+		int cnt = 0;
+
+		for (int d = 0; d < pUp.length; d++)
+		{
+			if (Double.isNaN(pUp[d][g])) continue;
+
+			// take the quantile of the smaller one-sided p-value, for precision
+			double z = pUp[d][g] < pDown[d][g] ? -inverseNormal(pUp[d][g]) : inverseNormal(pDown[d][g]);
+			sum += weights[d] * z;
+			sumSq += weights[d] * weights[d];
+			cnt++;
+		}
+
+		if (cnt == 0)
+		{
+			pvals[g] = Double.NaN;
+			return;
+		}
+
+		double z = sum / Math.sqrt(sumSq);
+		pvals[g] = SampleActivityScorer.getTwoTailedPValue(z);
+		directions[g] = (byte) (z > 0 ? 1 : z < 0 ? -1 : 0);
+	}
+
+	private void combineFisher(int g)
+	{
+		double up = 0;
+		double down = 0;
+		int cnt = 0;
+
+		for (int d = 0; d < pUp.length; d++)
+		{
+			if (Double.isNaN(pUp[d][g])) continue;
+
+			up -= 2 * Math.log(pUp[d][g]);
+			down -= 2 * Math.log(pDown[d][g]);
+			cnt++;
+		}
+
+		if (cnt == 0)
+		{
+			pvals[g] = Double.NaN;
+			return;
+		}
+
+		double pu = chiSquareSurvival(up, cnt);
+		double pd = chiSquareSurvival(down, cnt);
+
+		// the two directions are tested, hence the Bonferroni factor
+		pvals[g] = Math.min(1, 2 * Math.min(pu, pd));
+		directions[g] = (byte) (pu < pd ? 1 : pd < pu ? -1 : 0);
+	}
+
+	/**
+	 * Survival function of the chi-square distribution with 2k degrees of freedom.
+	 */
+	static double chiSquareSurvival(double x, int k)
+	{
+		double h = x / 2;
+		double term = 1;
+		double sum = 1;
+		for (int j = 1; j < k; j++)
+		{
+			term *= h / j;
+			sum += term;
+		}
+		return Math.min(1, Math.exp(-h) * sum);
+	}
+
+	/**
+	 * Quantile function of the standard normal distribution (Acklam's approximation, refined with one step of
+	 * Halley's method).
+	 */
+	static double inverseNormal(double p)
+	{
+		if (p <= 0) return Double.NEGATIVE_INFINITY;
+		if (p >= 1) return Double.POSITIVE_INFINITY;
+
+		double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02,
+			-3.066479806614716e+01, 2.506628277459239e+00};
+		double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01,
+			-1.328068155288572e+01};
+		double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00,
+			4.374664141464968e+00, 2.938163982698783e+00};
+		double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+
+		double x;
+		if (p < 0.02425)
+		{
+			double q = Math.sqrt(-2 * Math.log(p));
+			x = (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+				((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		else if (p > 1 - 0.02425)
+		{
+			double q = Math.sqrt(-2 * Math.log(1 - p));
+			x = -(((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+				((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+		}
+		else
+		{
+			double q = p - 0.5;
+			double r = q * q;
+			x = (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q /
+				(((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+		}
+
+		double e = 0.5 * SampleActivityScorer.erfc(-x / Math.sqrt(2)) - p;
+		double u = e * Math.sqrt(2 * Math.PI) * Math.exp(x * x / 2);
+
+		// the density underflows in the far tails, where the approximation is kept as is
+		if (Double.isNaN(u) || Double.isInfinite(u)) return x;
+		return x - u / (1 + x * u / 2);
+	}
+
+	/**
+	 * A dataset to combine, before it is loaded.
+	 */
+	static class Dataset
+	{
+		ExpressionResourceType type;
+		String expressionFile;
+		String groupsFile;
+
+		Dataset(ExpressionResourceType type, String expressionFile, String groupsFile)
+		{
+			this.type = type;
+			this.expressionFile = expressionFile;
+			this.groupsFile = groupsFile;
+		}
+
+		/**
+		 * Loads the dataset and tests all its genes. The provider, and with it the matrix, is not kept.
+		 */
+		DatasetStats extract(ResourceCache resources)
+		{
+			try
+			{
+				TCGAExpressionProvider provider;
+				if (resources != null)
+				{
+					ExpressionReader er = resources.getExpressionReader(expressionFile, type);
+					provider = new TCGAExpressionProvider(er);
+				}
+				else if (type == ExpressionResourceType.Custom) provider = new CustomExpressionProvider(expressionFile);
+				else provider = new TCGAExpressionProvider(expressionFile);
+
+				TwoGroupsSampleNames two = new TwoGroupsSampleNames(groupsFile);
+				two.filterOutMissingSamples(provider.er.getSamples());
+				provider.setTwo(two);
+
+				String[] genes = provider.er.getGenes().stream().sorted().toArray(String[]::new);
+				double[] pvals = new double[genes.length];
+				byte[] directions = new byte[genes.length];
+
+				for (int i = 0; i < genes.length; i++)
+				{
+					TCGAExpressionProvider.Stat stat = provider.getStat(genes[i]);
+					pvals[i] = stat.pval == null ? Double.NaN : stat.pval;
+					directions[i] = (byte) stat.direction;
+				}
+
+				System.out.println("Extracted " + genes.length + " genes from " + expressionFile);
+				return new DatasetStats(genes, pvals, directions,
+					two.getControl().length + two.getTest().length);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Differential expression of the genes in a dataset.
+	 */
+	static class DatasetStats
+	{
+		String[] genes;
+		double[] pvals;
+		byte[] directions;
+		int sampleSize;
+
+		DatasetStats(String[] genes, double[] pvals, byte[] directions, int sampleSize)
+		{
+			this.genes = genes;
+			this.pvals = pvals;
+			this.directions = directions;
+			this.sampleSize = sampleSize;
+		}
+	}
+}
@@ -1,18 +1,17 @@
 package org.panda.tfactivity;
 
 import org.biopax.paxtools.pattern.miner.SIFEnum;
+import org.panda.resource.ResourceDirectory;
 import org.panda.resource.network.*;
 import org.panda.resource.signednetwork.SignedType;
 import org.panda.utility.graph.DirectedGraph;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Loads Pathway Commons SIF.
@@ -21,17 +20,105 @@ import java.util.stream.Collectors;
  */
 public class NetworkLoader
 {
+	/**
+	 * The signed network that is inferred from TCGA expression consensus.
+	 */
+	public static final String SIGNED_TCGA_CONSENSUS_FILE = "/home/babur/Documents/PC/SignedByTCGAConsensusFiltered.sif";
+
+	/**
+	 * Metrics of the run, to record the network sizes before and after cleaning. Can be null.
+	 */
+	RunMetrics metrics;
+
+	/**
+	 * Whether cleaning removes the targets with no expression data.
+	 */
+	boolean pruneMissingTargets = false;
+
+	public void setMetrics(RunMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Gets the files that the default network is loaded from when no network file is given: the TCGA consensus SIF
+	 * for the signed network, and the local files of the resources that loadUnsigned reads for the unsigned network.
+	 */
+	public static List<String> getDefaultSources(boolean signed)
+	{
+		if (signed) return Collections.singletonList(SIGNED_TCGA_CONSENSUS_FILE);
+
+		return Stream.of(PathwayCommons.get().getLocalFilenames(), TRRUST.get().getLocalFilenames(),
+			TFactS.get().getLocalFilenames()).flatMap(Arrays::stream)
+			.map(name -> ResourceDirectory.get() + File.separator + name).collect(Collectors.toList());
+	}
+
+	/**
+	 * Loads the TCGA consensus signed network from the compiled snapshot, which is recompiled when the SIF file is
+	 * changed.
+	 *
+	 * @param snapshotFile the compiled network file
+	 */
+	public Map<String, Map<String, Integer>> loadSignedTCGAConsensus(String snapshotFile) throws IOException
+	{
+		return loadSignedSIF(SIGNED_TCGA_CONSENSUS_FILE, snapshotFile);
+	}
+
 	public Map<String, Map<String, Integer>> loadSignedTCGAConsensus() throws IOException
 	{
-		Map<String, Map<String, Integer>> map = new HashMap<>();
-		Files.lines(Paths.get("/home/babur/Documents/PC/SignedByTCGAConsensusFiltered.sif")).map(l -> l.split("\t")).forEach(t ->
-		{
-			if (!map.containsKey(t[0])) map.put(t[0], new HashMap<>());
-			map.get(t[0]).put(t[2], t[1].startsWith("u") ? 1 : -1);
-		});
-		return map;
+		return loadSignedSIF(SIGNED_TCGA_CONSENSUS_FILE);
+	}
+
+	/**
+	 * Loads a signed network from the given SIF file. Relation types starting with "u" are positive, others negative.
+	 */
+	public Map<String, Map<String, Integer>> loadSignedSIF(String sifFile) throws IOException
+	{
+		return SIFReader.readSigned(sifFile);
+	}
+
+	/**
+	 * Loads a signed network from the compiled snapshot, which is recompiled when the SIF file is changed.
+	 *
+	 * @param sifFile the source SIF file
+	 * @param snapshotFile the compiled network file
+	 */
+	public Map<String, Map<String, Integer>> loadSignedSIF(String sifFile, String snapshotFile) throws IOException
+	{
+		return NetworkSnapshot.getSigned(snapshotFile, Collections.singletonList(sifFile),
+			() -> loadSignedSIF(sifFile));
+	}
+
+	/**
+	 * Loads an unsigned network from the given SIF file, ignoring relation types.
+	 */
+	public Map<String, Set<String>> loadUnsignedSIF(String sifFile) throws IOException
+	{
+		return SIFReader.readUnsigned(sifFile);
+	}
+
+	/**
+	 * Loads an unsigned network from the compiled snapshot, which is recompiled when the SIF file is changed.
+	 *
+	 * @param sifFile the source SIF file
+	 * @param snapshotFile the compiled network file
+	 */
+	public Map<String, Set<String>> loadUnsignedSIF(String sifFile, String snapshotFile) throws IOException
+	{
+		return NetworkSnapshot.getUnsigned(snapshotFile, Collections.singletonList(sifFile),
+			() -> loadUnsignedSIF(sifFile));
 	}
 
+	/**
+	 * Loads the unsigned network from the compiled snapshot. The resources are not tracked, so the snapshot file needs
+	 * to be deleted to be recompiled.
+	 *
+	 * @param snapshotFile the compiled network file
+	 */
+	public Map<String, Set<String>> loadUnsigned(String snapshotFile) throws IOException
+	{
+		return NetworkSnapshot.getUnsigned(snapshotFile, Collections.emptyList(), this::loadUnsigned);
+	}
 
 	/**
 	 * Loads the network.
@@ -103,33 +190,75 @@ public class NetworkLoader
 		}
 	}
 
-	public void cleanSigned(Map<String, Map<String, Integer>> network, DiscreteExpressionProvider prov, int minTargets)
+	/**
+	 * Sets whether to remove the targets that have no expression data. Otherwise they stay in the network and count as
+	 * unchanged, which keeps them in the permutation pool of the signed analysis and in the universe of the unsigned
+	 * analysis.
+	 */
+	public void setPruneMissingTargets(boolean pruneMissingTargets)
 	{
-		// remove targets with no expression data
-		for (String tf : network.keySet())
-		{
-			new HashSet<>(network.get(tf).keySet()).stream().filter(target -> prov.getChange(target) == null)
-				.forEach(target -> network.get(tf).remove(target));
-		}
+		this.pruneMissingTargets = pruneMissingTargets;
+	}
 
-		// remove TFs with low number of targets
-		new HashSet<>(network.keySet()).stream()
-			.filter(tf -> network.get(tf).size() < minTargets)
-			.forEach(network::remove);
+	public void cleanSigned(Map<String, Map<String, Integer>> network, DiscreteExpressionProvider prov, int minTargets)
+	{
+		prune(network, Map::keySet, prov, minTargets);
 	}
 
 	public void cleanUnsigned(Map<String, Set<String>> network, DiscreteExpressionProvider prov, int minTargets)
 	{
-		// remove targets with no expression data
-		for (String tf : network.keySet())
+		prune(network, targets -> targets, prov, minTargets);
+	}
+
+	/**
+	 * Removes the TFs with low number of targets, and if requested, the targets with no expression data first, in one
+	 * pass over the edges. Availability of all targets is queried from the provider at once, as a bitset over a target
+	 * index.
+	 *
+	 * @param network the network to prune
+	 * @param targetsOf gets the modifiable target collection of a TF
+	 * @param prov expression provider
+	 * @param minTargets minimum number of remaining targets for a TF to stay
+	 */
+	private <V> void prune(Map<String, V> network, Function<V, Collection<String>> targetsOf,
+		DiscreteExpressionProvider prov, int minTargets)
+	{
+		if (metrics != null) recordSize("network.loaded", network, targetsOf);
+
+		if (!pruneMissingTargets)
 		{
-			new HashSet<>(network.get(tf)).stream().filter(target -> prov.getChange(target) == null)
-				.forEach(target -> network.get(tf).remove(target));
+			network.values().removeIf(v -> targetsOf.apply(v).size() < minTargets);
+			if (metrics != null) recordSize("network.cleaned", network, targetsOf);
+			return;
 		}
 
-		// remove TFs with low number of targets
-		new HashSet<>(network.keySet()).stream()
-			.filter(tf -> network.get(tf).size() < minTargets)
-			.forEach(network::remove);
+		Map<String, Integer> index = new HashMap<>();
+		for (V v : network.values())
+		{
+			for (String target : targetsOf.apply(v))
+			{
+				index.putIfAbsent(target, index.size());
+			}
+		}
+
+		String[] genes = new String[index.size()];
+		index.forEach((gene, i) -> genes[i] = gene);
+
+		BitSet available = prov.getAvailableGenes(genes);
+
+		network.values().removeIf(v ->
+		{
+			Collection<String> targets = targetsOf.apply(v);
+			targets.removeIf(target -> !available.get(index.get(target)));
+			return targets.size() < minTargets;
+		});
+
+		if (metrics != null) recordSize("network.cleaned", network, targetsOf);
+	}
+
+	private <V> void recordSize(String name, Map<String, V> network, Function<V, Collection<String>> targetsOf)
+	{
+		metrics.record(name + ".tfs", network.size());
+		metrics.record(name + ".edges", network.values().stream().mapToInt(v -> targetsOf.apply(v).size()).sum());
 	}
 }
@@ -0,0 +1,373 @@
+package org.panda.tfactivity;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Compiled binary form of a merged and conflict-resolved network. The file contains a symbol table, and the edges in
+ * compressed sparse row (CSR) layout with a sign byte per edge. A fingerprint of the source files is kept in the
+ * header, and the snapshot is considered stale when it does not match the current sources.
+ *
+ * Layout: magic, version, network kind (signed or unsigned), fingerprint, symbol count, symbols, TF count, TF symbol indices, row offsets, target symbol
+ * indices, signs. Strings are stored as UTF-8 bytes prefixed by their length.
+ *
+ * @author Ozgun Babur
+ */
+public class NetworkSnapshot
+{
+	private static final int MAGIC = 0x54464e53;
+	private static final int VERSION = 2;
+
+	/**
+	 * Kinds of the network in the snapshot, which a reader of the other kind must not accept.
+	 */
+	private static final byte SIGNED_NETWORK = 1;
+	private static final byte UNSIGNED_NETWORK = 2;
+
+	/**
+	 * Sign byte for unsigned edges.
+	 */
+	private static final byte UNSIGNED = 0;
+
+	/**
+	 * Gets the signed network from the snapshot file if it is up to date, otherwise loads it with the given loader and
+	 * compiles the snapshot for the next time.
+	 *
+	 * @param snapshotFile the snapshot file
+	 * @param sources files whose change should invalidate the snapshot
+	 * @param loader loads the network from the sources
+	 * @return the signed network
+	 */
+	public static Map<String, Map<String, Integer>> getSigned(String snapshotFile, List<String> sources,
+		NetworkSupplier<Map<String, Map<String, Integer>>> loader) throws IOException
+	{
+		String fingerprint = getFingerprint(sources);
+
+		Map<String, Map<String, Integer>> network = readSigned(snapshotFile, fingerprint);
+		if (network == null)
+		{
+			network = loader.load();
+			writeSigned(network, snapshotFile, fingerprint);
+		}
+		return network;
+	}
+
+	/**
+	 * Gets the unsigned network from the snapshot file if it is up to date, otherwise loads it with the given loader
+	 * and compiles the snapshot for the next time.
+	 *
+	 * @param snapshotFile the snapshot file
+	 * @param sources files whose change should invalidate the snapshot
+	 * @param loader loads the network from the sources
+	 * @return the unsigned network
+	 */
+	public static Map<String, Set<String>> getUnsigned(String snapshotFile, List<String> sources,
+		NetworkSupplier<Map<String, Set<String>>> loader) throws IOException
+	{
+		String fingerprint = getFingerprint(sources);
+
+		Map<String, Set<String>> network = readUnsigned(snapshotFile, fingerprint);
+		if (network == null)
+		{
+			network = loader.load();
+			writeUnsigned(network, snapshotFile, fingerprint);
+		}
+		return network;
+	}
+
+	/**
+	 * Generates a fingerprint from the path, size and modification time of each source file.
+	 */
+	static String getFingerprint(List<String> sources) throws IOException
+	{
+		StringBuilder sb = new StringBuilder("v" + VERSION);
+		for (String source : sources)
+		{
+			Path path = Paths.get(source);
+			sb.append(";").append(path.toAbsolutePath());
+
+			if (Files.exists(path))
+			{
+				sb.append(":").append(Files.size(path)).append(":").append(Files.getLastModifiedTime(path).toMillis());
+			}
+		}
+		return sb.toString();
+	}
+
+	public static void writeSigned(Map<String, Map<String, Integer>> network, String file, String fingerprint)
+		throws IOException
+	{
+		write(network, Map::keySet, (tf, target) -> network.get(tf).get(target).byteValue(), SIGNED_NETWORK, file,
+			fingerprint);
+	}
+
+	public static void writeUnsigned(Map<String, Set<String>> network, String file, String fingerprint)
+		throws IOException
+	{
+		write(network, s -> s, (tf, target) -> UNSIGNED, UNSIGNED_NETWORK, file, fingerprint);
+	}
+
+	private static <V> void write(Map<String, V> network, TargetExtractor<V> extractor, SignExtractor signs,
+		byte kind, String file, String fingerprint) throws IOException
+	{
+		// symbol table
+		Map<String, Integer> ids = new HashMap<>();
+		List<String> symbols = new ArrayList<>();
+		List<String> tfs = new ArrayList<>(network.keySet());
+		Collections.sort(tfs);
+
+		int edges = 0;
+		for (String tf : tfs)
+		{
+			addSymbol(tf, ids, symbols);
+			for (String target : extractor.getTargets(network.get(tf)))
+			{
+				addSymbol(target, ids, symbols);
+				edges++;
+			}
+		}
+
+		Path path = Paths.get(file).toAbsolutePath();
+		Files.createDirectories(path.getParent());
+
+		// write to a temporary file first so that a failed compilation does not leave a corrupt snapshot, with a unique
+		// name so that processes compiling the same snapshot do not write into each other's file
+		Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString() + ".", ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeByte(kind);
+			writeString(out, fingerprint);
+
+			out.writeInt(symbols.size());
+			for (String symbol : symbols)
+			{
+				writeString(out, symbol);
+			}
+
+			out.writeInt(tfs.size());
+			out.writeInt(edges);
+
+			for (String tf : tfs)
+			{
+				out.writeInt(ids.get(tf));
+			}
+
+			int offset = 0;
+			out.writeInt(offset);
+			for (String tf : tfs)
+			{
+				offset += extractor.getTargets(network.get(tf)).size();
+				out.writeInt(offset);
+			}
+
+			List<byte[]> signRows = new ArrayList<>(tfs.size());
+
+			for (String tf : tfs)
+			{
+				Collection<String> targets = extractor.getTargets(network.get(tf));
+				byte[] row = new byte[targets.size()];
+				int i = 0;
+
+				for (String target : targets)
+				{
+					out.writeInt(ids.get(target));
+					row[i++] = signs.getSign(tf, target);
+				}
+				signRows.add(row);
+			}
+
+			for (byte[] row : signRows)
+			{
+				out.write(row);
+			}
+		}
+		catch (IOException | RuntimeException e)
+		{
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Reads the signed network from the snapshot.
+	 *
+	 * @return the network, or null if the snapshot does not exist or does not match the fingerprint
+	 * @throws IOException if the snapshot holds an unsigned network
+	 */
+	public static Map<String, Map<String, Integer>> readSigned(String file, String fingerprint) throws IOException
+	{
+		Map<String, Map<String, Integer>> network = new HashMap<>();
+
+		boolean read = read(file, fingerprint, SIGNED_NETWORK, (tf, targets, signs) ->
+		{
+			Map<String, Integer> map = new HashMap<>((int) (targets.length / 0.75) + 1);
+			for (int i = 0; i < targets.length; i++)
+			{
+				map.put(targets[i], (int) signs[i]);
+			}
+			network.put(tf, map);
+		});
+
+		return read ? network : null;
+	}
+
+	/**
+	 * Reads the unsigned network from the snapshot.
+	 *
+	 * @return the network, or null if the snapshot does not exist or does not match the fingerprint
+	 * @throws IOException if the snapshot holds a signed network
+	 */
+	public static Map<String, Set<String>> readUnsigned(String file, String fingerprint) throws IOException
+	{
+		Map<String, Set<String>> network = new HashMap<>();
+
+		boolean read = read(file, fingerprint, UNSIGNED_NETWORK, (tf, targets, signs) ->
+			network.put(tf, new HashSet<>(Arrays.asList(targets))));
+
+		return read ? network : null;
+	}
+
+	private static boolean read(String file, String fingerprint, byte kind, RowConsumer consumer) throws IOException
+	{
+		Path path = Paths.get(file);
+		if (!Files.exists(path)) return false;
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+		{
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buf.remaining() < 9 || buf.getInt() != MAGIC || buf.getInt() != VERSION) return false;
+
+			byte found = buf.get();
+			if (found != kind)
+			{
+				throw new IOException("Network snapshot " + file + " holds a" +
+					(found == SIGNED_NETWORK ? " signed" : "n unsigned") + " network, expected " +
+					(kind == SIGNED_NETWORK ? "a signed" : "an unsigned") + " one");
+			}
+			if (!readString(buf).equals(fingerprint)) return false;
+
+			String[] symbols = new String[buf.getInt()];
+			for (int i = 0; i < symbols.length; i++)
+			{
+				symbols[i] = readString(buf);
+			}
+
+			int tfCnt = buf.getInt();
+			int edges = buf.getInt();
+
+			int[] tfs = new int[tfCnt];
+			buf.asIntBuffer().get(tfs);
+			buf.position(buf.position() + tfCnt * 4);
+
+			int[] offsets = new int[tfCnt + 1];
+			buf.asIntBuffer().get(offsets);
+			buf.position(buf.position() + offsets.length * 4);
+
+			int[] targets = new int[edges];
+			buf.asIntBuffer().get(targets);
+			buf.position(buf.position() + edges * 4);
+
+			byte[] signs = new byte[edges];
+			buf.get(signs);
+
+			for (int i = 0; i < tfCnt; i++)
+			{
+				int from = offsets[i];
+				int to = offsets[i + 1];
+
+				String[] rowTargets = new String[to - from];
+				for (int j = from; j < to; j++)
+				{
+					rowTargets[j - from] = symbols[targets[j]];
+				}
+
+				consumer.accept(symbols[tfs[i]], rowTargets, Arrays.copyOfRange(signs, from, to));
+			}
+		}
+		return true;
+	}
+
+	private static void addSymbol(String symbol, Map<String, Integer> ids, List<String> symbols)
+	{
+		if (!ids.containsKey(symbol))
+		{
+			ids.put(symbol, symbols.size());
+			symbols.add(symbol);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buf)
+	{
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Loads a network from its sources.
+	 */
+	public interface NetworkSupplier<T>
+	{
+		T load() throws IOException;
+	}
+
+	interface TargetExtractor<V>
+	{
+		Collection<String> getTargets(V value);
+	}
+
+	interface SignExtractor
+	{
+		byte getSign(String tf, String target);
+	}
+
+	interface RowConsumer
+	{
+		void accept(String tf, String[] targets, byte[] signs);
+	}
+
+	/**
+	 * Compiles a network snapshot.
+	 *
+	 * @param args network type (signed, unsigned or signed-tcga-consensus), and the snapshot file
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		NetworkLoader nl = new NetworkLoader();
+		String type = args[0];
+		String file = args[1];
+
+		switch (type)
+		{
+			case "signed": writeSigned(nl.loadSigned(), file, getFingerprint(Collections.emptyList())); break;
+			case "unsigned": writeUnsigned(nl.loadUnsigned(), file, getFingerprint(Collections.emptyList())); break;
+			case "signed-tcga-consensus":
+				writeSigned(nl.loadSignedTCGAConsensus(), file,
+					getFingerprint(Collections.singletonList(NetworkLoader.SIGNED_TCGA_CONSENSUS_FILE)));
+				break;
+			default: throw new IllegalArgumentException("Unknown network type: " + type);
+		}
+	}
+}
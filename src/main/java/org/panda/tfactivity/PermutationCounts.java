@@ -0,0 +1,296 @@
+package org.panda.tfactivity;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Exceedance counts of the signed analysis permutations, for one shard of the permutations or for all of them. The
+ * permutations form a seeded stream, where each permutation is generated from the seed and its own index, so any
+ * process can run any slice of the stream. Shard i of N runs the permutations whose index modulo N is i. Counts of the
+ * shards are written to small binary files, and merging the files of all shards gives the same counts as a single
+ * process run with the same seed. Each file carries a fingerprint of the inputs of the permutations, which are the
+ * network and the discretized expression of its targets, so that shards of different inputs are not merged.
+ *
+ * @author Ozgun Babur
+ */
+public class PermutationCounts
+{
+	/**
+	 * Identifies the count files.
+	 */
+	static final int MAGIC = 0x54464143;
+
+	static final int VERSION = 2;
+
+	/**
+	 * Prefix of the names of the shard count files in the run directory.
+	 */
+	public static final String FILE_PREFIX = "permutation-counts-";
+
+	/**
+	 * Name of the file for the counts of a cancelled run that is not sharded. It does not have the shard prefix, so
+	 * merging does not pick it up.
+	 */
+	public static final String PARTIAL_FILENAME = "partial-permutation-counts.bin";
+
+	long seed;
+
+	/**
+	 * Fingerprint of the network and the expression changes that the permutations are run on.
+	 */
+	long inputs;
+
+	/**
+	 * Number of permutations in the whole stream, over all shards.
+	 */
+	int totalIterations;
+
+	/**
+	 * Index of the shard, starting from 0, and the number of shards. Merged counts have shard count 1.
+	 */
+	int shardIndex;
+	int shardCount;
+
+	/**
+	 * Number of permutations counted.
+	 */
+	int done;
+
+	/**
+	 * Counted TFs, in ascending order.
+	 */
+	String[] tfs;
+
+	/**
+	 * Number of permutations where the activation and the inhibition evidence of the i-th TF reached the actual
+	 * evidence, at 2i and 2i + 1.
+	 */
+	int[] better;
+
+	public PermutationCounts(Collection<String> tfs, long seed, int totalIterations, int shardIndex, int shardCount)
+	{
+		this.tfs = tfs.stream().sorted().toArray(String[]::new);
+		this.seed = seed;
+		this.totalIterations = totalIterations;
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+		this.better = new int[this.tfs.length * 2];
+	}
+
+	/**
+	 * Tells whether the permutation with the given index belongs to this shard.
+	 */
+	public boolean isInShard(int iteration)
+	{
+		return iteration % shardCount == shardIndex;
+	}
+
+	/**
+	 * Gets the seed of the random generator of the permutation with the given index, mixing the bits of the stream seed
+	 * and the index (SplitMix64 finalizer).
+	 */
+	public static long getIterationSeed(long seed, int iteration)
+	{
+		long z = seed + (iteration + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Gets the number of permutations of the stream that belong to the shard.
+	 */
+	public int getPlanned()
+	{
+		return (totalIterations - shardIndex + shardCount - 1) / shardCount;
+	}
+
+	/**
+	 * Generates a fingerprint of the inputs of the permutations, from the signed edges of the network and the changes
+	 * of their targets.
+	 */
+	public static long getInputFingerprint(Map<String, Map<String, Integer>> network,
+		DiscreteExpressionProvider expProv)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+
+		for (String tf : new TreeSet<>(network.keySet()))
+		{
+			Map<String, Integer> edges = network.get(tf);
+			for (String target : new TreeSet<>(edges.keySet()))
+			{
+				digest.update((tf + "\t" + target + "\t" + edges.get(target) + "\t" + expProv.getChange(target) + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		return ByteBuffer.wrap(digest.digest()).getLong();
+	}
+
+	/**
+	 * Gets the empirical activation and inhibition p-values of the TFs.
+	 */
+	public Map<String, double[]> getPValues()
+	{
+		if (done == 0) throw new IllegalStateException("No permutations are counted, cannot report p-values");
+
+		Map<String, double[]> map = new HashMap<>();
+		for (int i = 0; i < tfs.length; i++)
+		{
+			map.put(tfs[i], new double[]{better[2 * i] / (double) done, better[2 * i + 1] / (double) done});
+		}
+		return map;
+	}
+
+	public static String getFileName(int shardIndex, int shardCount)
+	{
+		return FILE_PREFIX + (shardIndex + 1) + "-of-" + shardCount + ".bin";
+	}
+
+	public void write(String file) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(Files.newOutputStream(Paths.get(file)))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(seed);
+			out.writeLong(inputs);
+			out.writeInt(totalIterations);
+			out.writeInt(shardIndex);
+			out.writeInt(shardCount);
+			out.writeInt(done);
+			out.writeInt(tfs.length);
+			for (int i = 0; i < tfs.length; i++)
+			{
+				out.writeUTF(tfs[i]);
+				out.writeInt(better[2 * i]);
+				out.writeInt(better[2 * i + 1]);
+			}
+		}
+	}
+
+	public static PermutationCounts read(String file) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(
+			new BufferedInputStream(Files.newInputStream(Paths.get(file)))))
+		{
+			if (in.readInt() != MAGIC) throw new IOException("Not a permutation counts file: " + file);
+			if (in.readInt() != VERSION) throw new IOException("Unsupported permutation counts version: " + file);
+
+			long seed = in.readLong();
+			long inputs = in.readLong();
+			int total = in.readInt();
+			int index = in.readInt();
+			int count = in.readInt();
+			int done = in.readInt();
+
+			int n = in.readInt();
+			List<String> tfs = new ArrayList<>();
+			int[] better = new int[n * 2];
+			for (int i = 0; i < n; i++)
+			{
+				tfs.add(in.readUTF());
+				better[2 * i] = in.readInt();
+				better[2 * i + 1] = in.readInt();
+			}
+
+			PermutationCounts counts = new PermutationCounts(tfs, seed, total, index, count);
+			if (!Arrays.asList(counts.tfs).equals(tfs)) throw new IOException("TFs are not sorted in " + file);
+			counts.inputs = inputs;
+			counts.better = better;
+			counts.done = done;
+			return counts;
+		}
+	}
+
+	/**
+	 * Reads the shard count files in the directory.
+	 */
+	public static List<PermutationCounts> readShards(String dir) throws IOException
+	{
+		List<Path> files;
+		try (Stream<Path> stream = Files.list(Paths.get(dir)))
+		{
+			files = stream.filter(p -> p.getFileName().toString().startsWith(FILE_PREFIX)).sorted()
+				.collect(Collectors.toList());
+		}
+
+		List<PermutationCounts> shards = new ArrayList<>();
+		for (Path file : files)
+		{
+			shards.add(read(file.toString()));
+		}
+		return shards;
+	}
+
+	/**
+	 * Sums the counts of the shards of the same permutation stream and the same inputs. All shards must be present,
+	 * and must have finished all their permutations.
+	 */
+	public static PermutationCounts merge(List<PermutationCounts> shards)
+	{
+		if (shards.isEmpty()) throw new IllegalArgumentException("No shards to merge");
+
+		PermutationCounts first = shards.get(0);
+		BitSet seen = new BitSet(first.shardCount);
+
+		PermutationCounts merged = new PermutationCounts(Arrays.asList(first.tfs), first.seed, first.totalIterations,
+			0, 1);
+		merged.inputs = first.inputs;
+
+		for (PermutationCounts shard : shards)
+		{
+			if (shard.seed != first.seed || shard.totalIterations != first.totalIterations ||
+				shard.shardCount != first.shardCount || !Arrays.equals(shard.tfs, first.tfs))
+			{
+				throw new IllegalArgumentException("Shard " + (shard.shardIndex + 1) + " of " + shard.shardCount +
+					" is not from the same permutation stream as the others");
+			}
+			if (shard.inputs != first.inputs)
+			{
+				throw new IllegalArgumentException("Shard " + (shard.shardIndex + 1) + " of " + shard.shardCount +
+					" is computed on different network or expression than the others");
+			}
+			if (shard.done < shard.getPlanned())
+			{
+				throw new IllegalArgumentException("Shard " + (shard.shardIndex + 1) + " of " + shard.shardCount +
+					" stopped early, after " + shard.done + " of " + shard.getPlanned() + " permutations");
+			}
+			if (seen.get(shard.shardIndex))
+			{
+				throw new IllegalArgumentException("Shard " + (shard.shardIndex + 1) + " is given more than once");
+			}
+			seen.set(shard.shardIndex);
+
+			for (int i = 0; i < merged.better.length; i++)
+			{
+				merged.better[i] += shard.better[i];
+			}
+			merged.done += shard.done;
+		}
+
+		if (seen.cardinality() != first.shardCount)
+		{
+			throw new IllegalArgumentException("Missing shards, found " + seen.cardinality() + " of " +
+				first.shardCount);
+		}
+		return merged;
+	}
+}
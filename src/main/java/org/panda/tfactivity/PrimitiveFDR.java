@@ -0,0 +1,190 @@
+package org.panda.tfactivity;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Benjamini-Hochberg FDR control on primitive arrays, with parallel index arrays instead of string keyed maps. Used
+ * for all FDR calculations of the project.
+ *
+ * @author Ozgun Babur
+ */
+public class PrimitiveFDR
+{
+	/**
+	 * Finds the p-value threshold that controls the FDR at the given level. The limits array contains the most
+	 * significant p-value each test could possibly reach; a test cannot be counted for a threshold that is smaller than
+	 * its limit. Limits can be null, which means every test counts.
+	 *
+	 * The returned value lies strictly between the largest selected p-value and the next p-value, so that both
+	 * "p < thr" and "p <= thr" comparisons select the same tests. If nothing can be selected, 0 is returned. NaN
+	 * p-values are not tests, and are not counted.
+	 *
+	 * @param pvals p-values of the tests, not modified
+	 * @param limits most significant possible p-values of the tests, not modified, or null
+	 * @param fdrThr the FDR to control
+	 * @return the p-value threshold
+	 */
+	public static double getPValueThreshold(double[] pvals, double[] limits, double fdrThr)
+	{
+		int n = pvals.length;
+		if (n == 0) return 0;
+
+		double[] p = Arrays.copyOf(pvals, n);
+		Arrays.sort(p);
+
+		// NaNs are sorted last
+		int valid = n;
+		while (valid > 0 && Double.isNaN(p[valid - 1])) valid--;
+
+		double[] l = null;
+		if (limits != null)
+		{
+			l = Arrays.copyOf(limits, limits.length);
+			Arrays.sort(l);
+		}
+
+		for (int i = valid - 1; i >= 0; i--)
+		{
+			int tests = l == null ? valid : countLessOrEqual(l, p[i]);
+
+			if (p[i] * tests / (i + 1) <= fdrThr)
+			{
+				// skip over ties so that they are all selected
+				int j = i + 1;
+				while (j < valid && p[j] == p[i]) j++;
+
+				return j < valid ? (p[i] + p[j]) / 2 : Math.nextUp(p[i]);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Calculates the q-values of the tests and selects the ones that pass the FDR threshold, with a single sort of the
+	 * test indices. The q-value of a test is the smallest FDR at which it is selected, so the selected tests are those
+	 * with q-values not greater than the threshold. The limits and NaN p-values are treated as in getPValueThreshold.
+	 *
+	 * @param pvals p-values of the tests, not modified
+	 * @param limits most significant possible p-values of the tests, not modified, or null
+	 * @param fdrThr the FDR to control
+	 * @return q-values and selection of the tests
+	 */
+	public static Result control(double[] pvals, double[] limits, double fdrThr)
+	{
+		int n = pvals.length;
+		int[] order = RankUtil.sortIndices(pvals);
+		double[] qvals = new double[n];
+
+		// NaNs are ordered last
+		int valid = n;
+		while (valid > 0 && Double.isNaN(pvals[order[valid - 1]])) valid--;
+
+		double[] l = null;
+		if (limits != null)
+		{
+			l = Arrays.copyOf(limits, limits.length);
+			Arrays.sort(l);
+		}
+
+		// walk from the largest p-value, keeping the running minimum so that q-values are monotonic, and tied p-values
+		// get the q-value of the last one in their group
+		double min = 1;
+		for (int i = n - 1; i >= 0; i--)
+		{
+			int k = order[i];
+			double p = pvals[k];
+
+			if (Double.isNaN(p))
+			{
+				qvals[k] = Double.NaN;
+				continue;
+			}
+
+			int tests = l == null ? valid : countLessOrEqual(l, p);
+			min = Math.min(min, p * tests / (i + 1));
+			qvals[k] = min;
+		}
+
+		BitSet selected = new BitSet(n);
+		for (int k = 0; k < n; k++)
+		{
+			if (qvals[k] <= fdrThr) selected.set(k);
+		}
+
+		return new Result(order, qvals, selected);
+	}
+
+	/**
+	 * Outcome of the FDR control over an array of tests. Indices refer to the positions in the given p-value array.
+	 */
+	public static class Result
+	{
+		/**
+		 * Test indices in ascending order of p-values, NaNs last, ties in index order.
+		 */
+		int[] order;
+
+		/**
+		 * Q-values of the tests. NaN for NaN p-values.
+		 */
+		double[] qvals;
+
+		/**
+		 * Tests that pass the FDR threshold.
+		 */
+		BitSet selected;
+
+		Result(int[] order, double[] qvals, BitSet selected)
+		{
+			this.order = order;
+			this.qvals = qvals;
+			this.selected = selected;
+		}
+
+		public double getQVal(int i)
+		{
+			return qvals[i];
+		}
+
+		public double[] getQVals()
+		{
+			return qvals;
+		}
+
+		public boolean isSelected(int i)
+		{
+			return selected.get(i);
+		}
+
+		public BitSet getSelected()
+		{
+			return selected;
+		}
+
+		/**
+		 * Gets the indices of the selected tests in ascending order of their p-values.
+		 */
+		public int[] getSelectedInOrder()
+		{
+			return Arrays.stream(order).filter(selected::get).toArray();
+		}
+	}
+
+	/**
+	 * Counts the values in the sorted array that are less than or equal to the given value.
+	 */
+	static int countLessOrEqual(double[] sorted, double v)
+	{
+		int lo = 0;
+		int hi = sorted.length;
+
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] <= v) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+}
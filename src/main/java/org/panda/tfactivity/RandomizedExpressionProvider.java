@@ -16,7 +16,9 @@ public class RandomizedExpressionProvider implements DiscreteExpressionProvider
 	{
 		this.provider = provider;
 
+		// sorted, so that a seeded shuffle gives the same mapping in every process
 		genes = new ArrayList<>(genesToConsider);
+		Collections.sort(genes);
 		shuff = new ArrayList<>(genes);
 
 		mapping = new HashMap<>();
@@ -25,7 +27,24 @@ public class RandomizedExpressionProvider implements DiscreteExpressionProvider
 	public void shuffle()
 	{
 		Collections.shuffle(shuff);
+		updateMapping();
+	}
+
+	/**
+	 * Shuffles the genes starting from their sorted order, with the given seed. The mapping depends only on the seed.
+	 */
+	public void shuffle(long seed)
+	{
+		for (int i = 0; i < genes.size(); i++)
+		{
+			shuff.set(i, genes.get(i));
+		}
+		Collections.shuffle(shuff, new Random(seed));
+		updateMapping();
+	}
 
+	private void updateMapping()
+	{
 		for (int i = 0; i < genes.size(); i++)
 		{
 			mapping.put(genes.get(i), shuff.get(i));
@@ -0,0 +1,166 @@
+package org.panda.tfactivity;
+
+/**
+ * Ranking of primitive double arrays without boxing. Values are ordered as in Double.compare, so NaNs come last. Tied
+ * values get the smallest rank of their group, and NaNs get NaN rank. Index sorting breaks ties by the index, hence it
+ * gives the same order as a stable sort.
+ *
+ * @author Ozgun Babur
+ */
+public class RankUtil
+{
+	/**
+	 * Below this segment size the sort switches to insertion sort.
+	 */
+	private static final int INSERTION_THRESHOLD = 16;
+
+	/**
+	 * Gets the indices of the given values in ascending order of the values.
+	 */
+	public static int[] sortIndices(double[] key)
+	{
+		int[] ind = new int[key.length];
+		for (int i = 0; i < ind.length; i++)
+		{
+			ind[i] = i;
+		}
+		sortIndices(ind, key);
+		return ind;
+	}
+
+	/**
+	 * Sorts the given index array in place, in ascending order of the key values they point.
+	 */
+	public static void sortIndices(int[] ind, double[] key)
+	{
+		quickSort(ind, key, 0, ind.length - 1);
+	}
+
+	/**
+	 * Gets the forward ranks of the given values, starting from 0.
+	 */
+	public static double[] getRanks(double[] vals)
+	{
+		double[] r = new double[vals.length];
+		getRanks(vals, sortIndices(vals), r);
+		return r;
+	}
+
+	/**
+	 * Fills the ranks array using the index array that is already sorted by the values.
+	 */
+	public static void getRanks(double[] vals, int[] sorted, double[] ranks)
+	{
+		double prevRank = 0;
+
+		for (int i = 0; i < sorted.length; i++)
+		{
+			int index = sorted[i];
+			double v = vals[index];
+
+			if (Double.isNaN(v))
+			{
+				ranks[index] = Double.NaN;
+			}
+			else if (i > 0 && Double.compare(vals[sorted[i - 1]], v) == 0)
+			{
+				ranks[index] = prevRank;
+			}
+			else
+			{
+				ranks[index] = i;
+				prevRank = i;
+			}
+		}
+	}
+
+	/**
+	 * Derives the reverse ranks from the forward ranks. Reverse ordering is descending with NaNs first, which is the
+	 * mirror of the forward ordering. A tie group occupying the forward positions [lo, hi] gets the reverse rank
+	 * n - 1 - hi, and hi can be recovered from lo and the size of the tie group.
+	 *
+	 * @param ranks forward ranks
+	 * @return reverse ranks
+	 */
+	public static double[] getReverseRanks(double[] ranks)
+	{
+		int n = ranks.length;
+		int[] tieSize = new int[n];
+
+		for (double r : ranks)
+		{
+			if (!Double.isNaN(r)) tieSize[(int) r]++;
+		}
+
+		double[] rev = new double[n];
+		for (int i = 0; i < n; i++)
+		{
+			if (Double.isNaN(ranks[i])) rev[i] = Double.NaN;
+			else
+			{
+				int lo = (int) ranks[i];
+				rev[i] = n - lo - tieSize[lo];
+			}
+		}
+		return rev;
+	}
+
+	private static void quickSort(int[] ind, double[] key, int lo, int hi)
+	{
+		while (hi - lo > INSERTION_THRESHOLD)
+		{
+			// median of three pivot
+			int mid = (lo + hi) >>> 1;
+			if (compare(key, ind[mid], ind[lo]) < 0) swap(ind, mid, lo);
+			if (compare(key, ind[hi], ind[lo]) < 0) swap(ind, hi, lo);
+			if (compare(key, ind[hi], ind[mid]) < 0) swap(ind, hi, mid);
+			int pivot = ind[mid];
+
+			int i = lo;
+			int j = hi;
+			while (i <= j)
+			{
+				while (compare(key, ind[i], pivot) < 0) i++;
+				while (compare(key, ind[j], pivot) > 0) j--;
+				if (i <= j) swap(ind, i++, j--);
+			}
+
+			// recurse into the smaller part to bound the stack depth
+			if (j - lo < hi - i)
+			{
+				quickSort(ind, key, lo, j);
+				lo = i;
+			}
+			else
+			{
+				quickSort(ind, key, i, hi);
+				hi = j;
+			}
+		}
+
+		for (int i = lo + 1; i <= hi; i++)
+		{
+			int x = ind[i];
+			int j = i - 1;
+			while (j >= lo && compare(key, ind[j], x) > 0)
+			{
+				ind[j + 1] = ind[j];
+				j--;
+			}
+			ind[j + 1] = x;
+		}
+	}
+
+	private static int compare(double[] key, int a, int b)
+	{
+		int c = Double.compare(key[a], key[b]);
+		return c != 0 ? c : Integer.compare(a, b);
+	}
+
+	private static void swap(int[] ind, int a, int b)
+	{
+		int t = ind[a];
+		ind[a] = ind[b];
+		ind[b] = t;
+	}
+}
@@ -0,0 +1,215 @@
+package org.panda.tfactivity;
+
+import org.panda.resource.tcga.CustomExpressionReader;
+import org.panda.resource.tcga.ExpressionReader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keeps loaded expression matrices and networks in memory to be shared by analysis jobs. Entries are keyed by the
+ * fingerprint of their source files, so a changed file is loaded again. When the estimated memory use exceeds the
+ * budget, the least recently used entries are evicted. An evicted resource stays alive until the jobs that are using
+ * it finish.
+ *
+ * Networks are modified during the analysis, so each job gets its own copy of a cached network.
+ *
+ * @author Ozgun Babur
+ */
+public class ResourceCache
+{
+	/**
+	 * Memory budget in bytes.
+	 */
+	long memoryBudget;
+
+	/**
+	 * Estimated memory of the loaded entries.
+	 */
+	long used;
+
+	/**
+	 * Entries in access order.
+	 */
+	LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * Rough ratio of the memory size of an expression matrix to its text file size.
+	 */
+	private static final int EXPRESSION_MEMORY_FACTOR = 2;
+
+	/**
+	 * Rough memory size of an edge in a network map.
+	 */
+	private static final int EDGE_MEMORY_SIZE = 64;
+
+	public ResourceCache(long memoryBudget)
+	{
+		this.memoryBudget = memoryBudget;
+		entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	public ExpressionReader getExpressionReader(String file, ExpressionResourceType type) throws IOException
+	{
+		String key = "expression:" + type + ":" + NetworkSnapshot.getFingerprint(Collections.singletonList(file));
+
+		return get(key, () -> type == ExpressionResourceType.Custom ?
+			new CustomExpressionReader(file) : new ExpressionReader(file),
+			reader -> Files.size(Paths.get(file)) * EXPRESSION_MEMORY_FACTOR);
+	}
+
+	public SparseExpressionMatrix getSparseExpressionMatrix(String path) throws IOException
+	{
+		String key = "sparse-expression:" + NetworkSnapshot.getFingerprint(Collections.singletonList(path));
+		return get(key, () -> new SparseExpressionMatrix(path), SparseExpressionMatrix::getMemorySize);
+	}
+
+	/**
+	 * Gets a copy of the cached signed network.
+	 *
+	 * @param name distinguishes the network from others with the same sources
+	 * @param sources files that the network is loaded from
+	 * @param loader loads the network
+	 */
+	public Map<String, Map<String, Integer>> getSignedNetwork(String name, List<String> sources,
+		NetworkSnapshot.NetworkSupplier<Map<String, Map<String, Integer>>> loader) throws IOException
+	{
+		Map<String, Map<String, Integer>> network = get("signed:" + name + ":" +
+			NetworkSnapshot.getFingerprint(sources), loader, this::estimateNetworkSize);
+
+		Map<String, Map<String, Integer>> copy = new HashMap<>();
+		network.forEach((tf, targets) -> copy.put(tf, new HashMap<>(targets)));
+		return copy;
+	}
+
+	/**
+	 * Gets a copy of the cached unsigned network.
+	 *
+	 * @param name distinguishes the network from others with the same sources
+	 * @param sources files that the network is loaded from
+	 * @param loader loads the network
+	 */
+	public Map<String, Set<String>> getUnsignedNetwork(String name, List<String> sources,
+		NetworkSnapshot.NetworkSupplier<Map<String, Set<String>>> loader) throws IOException
+	{
+		Map<String, Set<String>> network = get("unsigned:" + name + ":" +
+			NetworkSnapshot.getFingerprint(sources), loader, this::estimateNetworkSize);
+
+		Map<String, Set<String>> copy = new HashMap<>();
+		network.forEach((tf, targets) -> copy.put(tf, new HashSet<>(targets)));
+		return copy;
+	}
+
+	private long estimateNetworkSize(Map<String, ?> network)
+	{
+		return network.values().stream()
+			.mapToLong(v -> v instanceof Map ? ((Map) v).size() : ((Collection) v).size())
+			.sum() * EDGE_MEMORY_SIZE;
+	}
+
+	/**
+	 * Gets the resource with the given key, loading it if it is not in the cache. Concurrent requests for the same
+	 * resource wait for a single load.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> T get(String key, NetworkSnapshot.NetworkSupplier<T> loader, SizeEstimator<T> sizer) throws IOException
+	{
+		Entry entry;
+		boolean load = false;
+
+		synchronized (this)
+		{
+			entry = entries.get(key);
+			if (entry == null)
+			{
+				entry = new Entry();
+				entries.put(key, entry);
+				load = true;
+			}
+		}
+
+		if (load)
+		{
+			try
+			{
+				T value = loader.load();
+				long size = sizer.estimate(value);
+
+				synchronized (this)
+				{
+					entry.size = size;
+					used += size;
+					evict(entry);
+				}
+
+				entry.value.complete(value);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				synchronized (this)
+				{
+					entries.remove(key);
+				}
+				entry.value.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		try
+		{
+			return (T) entry.value.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Evicts the least recently used loaded entries until the memory use is within the budget, keeping the given one.
+	 */
+	private synchronized void evict(Entry keep)
+	{
+		Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+
+		while (used > memoryBudget && iter.hasNext())
+		{
+			Entry entry = iter.next().getValue();
+
+			if (entry != keep && entry.value.isDone())
+			{
+				used -= entry.size;
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Gets the estimated memory use of the cached resources, in bytes.
+	 */
+	public synchronized long getUsedMemory()
+	{
+		return used;
+	}
+
+	class Entry
+	{
+		CompletableFuture<Object> value = new CompletableFuture<>();
+		long size;
+	}
+
+	interface SizeEstimator<T>
+	{
+		long estimate(T value) throws IOException;
+	}
+}
@@ -1,7 +1,6 @@
 package org.panda.tfactivity;
 
 import org.panda.utility.ArrayUtil;
-import org.panda.utility.CollectionUtil;
 import org.panda.utility.FileUtil;
 import org.panda.utility.ValToColor;
 
@@ -12,6 +11,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * @author Ozgun Babur
@@ -35,11 +37,51 @@ public class ResultListToGraph
 
 	Map<String, Row> data;
 
+	/**
+	 * Number of rows in a block of parallel similarity calculation.
+	 */
+	int blockSize = 64;
+
+	/**
+	 * Whether to find similar pairs approximately with MinHash and locality sensitive hashing, instead of exactly.
+	 */
+	boolean approximate = false;
+
+	/**
+	 * Number of hash functions in MinHash signatures.
+	 */
+	int minHashSize = 128;
+
+	/**
+	 * Seed for the MinHash functions.
+	 */
+	long minHashSeed = 1;
+
 	public ResultListToGraph(String inFile, double minimumJaccardSimilarity) throws IOException
 	{
 		this.inFile = inFile;
 		this.minimumJaccardSimilarity = minimumJaccardSimilarity;
 		load();
+		prepareBitsets();
+	}
+
+	/**
+	 * Constructor for the results that are already in memory, so that the result file does not need to be read back.
+	 *
+	 * @param rows result rows of the analysis
+	 * @param minimumJaccardSimilarity threshold for similarity edges
+	 */
+	public ResultListToGraph(List<Row> rows, double minimumJaccardSimilarity)
+	{
+		this.minimumJaccardSimilarity = minimumJaccardSimilarity;
+		data = new HashMap<>();
+		rows.forEach(this::addRow);
+		prepareBitsets();
+	}
+
+	public void setApproximate(boolean approximate)
+	{
+		this.approximate = approximate;
 	}
 
 	void load() throws IOException
@@ -56,16 +98,41 @@ public class ResultListToGraph
 		while (sc.hasNextLine())
 		{
 			String line = sc.nextLine();
-			Row row = new Row(line);
+			addRow(new Row(line, tfInd, pInd, actInd, targetInd));
+		}
+	}
 
-			if (data.containsKey(row.id))
+	private void addRow(Row row)
+	{
+		if (data.containsKey(row.id))
+		{
+			Row other = data.remove(row.id);
+			other.attachActivityToID();
+			data.put(other.id, other);
+			row.attachActivityToID();
+		}
+		data.put(row.id, row);
+	}
+
+	/**
+	 * Assigns an integer ID to each target gene, and represents the targets of each row as a bitset over these IDs.
+	 */
+	private void prepareBitsets()
+	{
+		Map<String, Integer> geneIDs = new HashMap<>();
+		data.values().stream().map(r -> r.targets).flatMap(Collection::stream).sorted().distinct()
+			.forEach(gene -> geneIDs.put(gene, geneIDs.size()));
+
+		int words = (geneIDs.size() + 63) >>> 6;
+
+		for (Row row : data.values())
+		{
+			row.bits = new long[words];
+			for (String target : row.targets)
 			{
-				Row other = data.remove(row.id);
-				other.attachActivityToID();
-				data.put(other.id, other);
-				row.attachActivityToID();
+				int id = geneIDs.get(target);
+				row.bits[id >>> 6] |= 1L << id;
 			}
-			data.put(row.id, row);
 		}
 	}
 
@@ -82,25 +149,11 @@ public class ResultListToGraph
 		BufferedWriter fmtWriter = Files.newBufferedWriter(Paths.get(outFileWoExt + ".format"));
 		fmtWriter.write("edge\tall-edges\twidth\t" + edgeWeights);
 
-		for (String id1 : data.keySet())
+		for (SimilarPair pair : getSimilarPairs())
 		{
-			Row tf1 = data.get(id1);
-			for (String id2 : data.keySet())
-			{
-				if (id1.compareTo(id2) < 0)
-				{
-					Row tf2 = data.get(id2);
-
-					double sim = tf1.getSimilarity(tf2);
-
-					if (sim >= minimumJaccardSimilarity)
-					{
-						sifWriter.write(id1 + "\t" + edgeType + "\t" + id2 + "\n");
-						fmtWriter.write("\nedge\t" + id1 + " " + edgeType + " " + id2 + "\tcolor\t" +
-							edgeCol.getColorInString(sim));
-					}
-				}
-			}
+			sifWriter.write(pair.id1 + "\t" + edgeType + "\t" + pair.id2 + "\n");
+			fmtWriter.write("\nedge\t" + pair.id1 + " " + edgeType + " " + pair.id2 + "\tcolor\t" +
+				edgeCol.getColorInString(pair.sim));
 		}
 		data.keySet().forEach(id ->
 		{
@@ -114,7 +167,239 @@ public class ResultListToGraph
 		fmtWriter.close();
 	}
 
-	class Row
+	/**
+	 * Gets the pairs of rows whose Jaccard similarity is at least the minimum, with the lexicographically smaller ID as
+	 * the first of the pair.
+	 */
+	List<SimilarPair> getSimilarPairs()
+	{
+		List<Row> rows = new ArrayList<>(data.values());
+		rows.sort(Comparator.comparing(r -> r.id));
+
+		if (approximate && minimumJaccardSimilarity > 0)
+		{
+			List<SimilarPair> pairs = new ArrayList<>();
+			addSimilarPairsWithMinHash(rows, pairs);
+			return pairs;
+		}
+
+		// zero similarity is not visible in the target overlaps, so every pair has to be checked
+		Map<String, List<Integer>> index = minimumJaccardSimilarity > 0 ? getInvertedIndex(rows) : null;
+
+		int blocks = (rows.size() + blockSize - 1) / blockSize;
+
+		List<List<SimilarPair>> blockPairs = IntStream.range(0, blocks).parallel()
+			.mapToObj(b -> getSimilarPairsInBlock(rows, index, b * blockSize,
+				Math.min(rows.size(), (b + 1) * blockSize)))
+			.collect(Collectors.toList());
+
+		List<SimilarPair> pairs = new ArrayList<>();
+		blockPairs.forEach(pairs::addAll);
+		return pairs;
+	}
+
+	private Map<String, List<Integer>> getInvertedIndex(List<Row> rows)
+	{
+		Map<String, List<Integer>> index = new HashMap<>();
+		for (int i = 0; i < rows.size(); i++)
+		{
+			for (String target : rows.get(i).targets)
+			{
+				index.computeIfAbsent(target, k -> new ArrayList<>()).add(i);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Finds the similar pairs exactly for the rows in the given block, pairing them with the rows that come after.
+	 * When an inverted index is given, only the rows that share at least one target are compared. Otherwise all pairs
+	 * are compared.
+	 *
+	 * @param rows all rows, sorted by ID
+	 * @param index target to row index, or null
+	 * @param from first row index of the block, inclusive
+	 * @param to last row index of the block, exclusive
+	 * @return similar pairs, in the row order
+	 */
+	private List<SimilarPair> getSimilarPairsInBlock(List<Row> rows, Map<String, List<Integer>> index, int from,
+		int to)
+	{
+		List<SimilarPair> pairs = new ArrayList<>();
+		boolean[] candidate = new boolean[rows.size()];
+		int[] touched = new int[rows.size()];
+
+		for (int i = from; i < to; i++)
+		{
+			Row row = rows.get(i);
+			int touchCnt = 0;
+
+			if (index == null)
+			{
+				for (int j = i + 1; j < rows.size(); j++)
+				{
+					touched[touchCnt++] = j;
+				}
+			}
+			else
+			{
+				for (String target : row.targets)
+				{
+					for (int j : index.get(target))
+					{
+						if (j > i && !candidate[j])
+						{
+							candidate[j] = true;
+							touched[touchCnt++] = j;
+						}
+					}
+				}
+				Arrays.sort(touched, 0, touchCnt);
+			}
+
+			for (int k = 0; k < touchCnt; k++)
+			{
+				int j = touched[k];
+				candidate[j] = false;
+				Row other = rows.get(j);
+				double sim = row.getSimilarity(other);
+
+				if (sim >= minimumJaccardSimilarity) pairs.add(new SimilarPair(row, other, sim));
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Finds the similar pairs approximately. Rows are bucketed by bands of their MinHash signatures, and only the rows
+	 * that share a bucket are compared. The band configuration is selected so that the detection probability rises
+	 * around the similarity threshold. Candidate pairs are verified with the exact similarity.
+	 */
+	private void addSimilarPairsWithMinHash(List<Row> rows, List<SimilarPair> pairs)
+	{
+		int bandRows = selectBandRows(minHashSize, minimumJaccardSimilarity);
+		int bands = minHashSize / bandRows;
+
+		Random rand = new Random(minHashSeed);
+		int[] seeds = new int[bands * bandRows];
+		for (int i = 0; i < seeds.length; i++)
+		{
+			seeds[i] = rand.nextInt();
+		}
+
+		int[][] signatures = new int[rows.size()][];
+		for (int i = 0; i < rows.size(); i++)
+		{
+			signatures[i] = getMinHashSignature(rows.get(i).targets, seeds);
+		}
+
+		Set<Long> candidates = new HashSet<>();
+
+		for (int b = 0; b < bands; b++)
+		{
+			Map<List<Integer>, List<Integer>> buckets = new HashMap<>();
+
+			for (int i = 0; i < rows.size(); i++)
+			{
+				List<Integer> key = new ArrayList<>(bandRows);
+				for (int r = b * bandRows; r < (b + 1) * bandRows; r++)
+				{
+					key.add(signatures[i][r]);
+				}
+				buckets.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+			}
+
+			for (List<Integer> bucket : buckets.values())
+			{
+				for (int x = 0; x < bucket.size(); x++)
+				{
+					for (int y = x + 1; y < bucket.size(); y++)
+					{
+						candidates.add(((long) bucket.get(x) << 32) | bucket.get(y));
+					}
+				}
+			}
+		}
+
+		List<Long> sorted = new ArrayList<>(candidates);
+		Collections.sort(sorted);
+
+		for (long candidate : sorted)
+		{
+			Row row = rows.get((int) (candidate >>> 32));
+			Row other = rows.get((int) candidate);
+			double sim = row.getSimilarity(other);
+
+			if (sim >= minimumJaccardSimilarity) pairs.add(new SimilarPair(row, other, sim));
+		}
+	}
+
+	/**
+	 * Selects the number of rows per band, among the divisors of the signature size, whose detection threshold
+	 * (1/b)^(1/r) is closest to, but not above the given similarity threshold.
+	 */
+	static int selectBandRows(int size, double threshold)
+	{
+		int best = 1;
+		for (int r = 1; r <= size; r++)
+		{
+			if (size % r != 0) continue;
+
+			double detect = Math.pow(1D / (size / r), 1D / r);
+			if (detect <= threshold) best = r;
+		}
+		return best;
+	}
+
+	private int[] getMinHashSignature(Set<String> targets, int[] seeds)
+	{
+		int[] sig = new int[seeds.length];
+		Arrays.fill(sig, Integer.MAX_VALUE);
+
+		for (String target : targets)
+		{
+			int h = target.hashCode();
+
+			for (int i = 0; i < seeds.length; i++)
+			{
+				int v = mix(h ^ seeds[i]);
+				if (v < sig[i]) sig[i] = v;
+			}
+		}
+		return sig;
+	}
+
+	/**
+	 * Finalization step of MurmurHash3, for spreading the bits of the given value.
+	 */
+	private static int mix(int h)
+	{
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	class SimilarPair
+	{
+		String id1;
+		String id2;
+		double sim;
+
+		public SimilarPair(Row row1, Row row2, double sim)
+		{
+			this.id1 = row1.id;
+			this.id2 = row2.id;
+			this.sim = sim;
+		}
+	}
+
+	/**
+	 * A TF in the result list, with its supporting targets.
+	 */
+	static class Row
 	{
 		String id;
 		String tf;
@@ -122,7 +407,21 @@ public class ResultListToGraph
 		Integer activity;
 		Set<String> targets;
 
-		public Row(String s)
+		/**
+		 * Targets as a bitset over the gene IDs of the graph.
+		 */
+		long[] bits;
+
+		public Row(String tf, double p, Integer activity, Collection<String> targets)
+		{
+			this.tf = tf;
+			this.id = tf;
+			this.p = p;
+			this.activity = activity;
+			this.targets = new HashSet<>(targets);
+		}
+
+		public Row(String s, int tfInd, int pInd, int actInd, int targetInd)
 		{
 			String[] t = s.split("\t");
 			tf = t[tfInd];
@@ -138,9 +437,21 @@ public class ResultListToGraph
 			id += "-" + (activity == 1 ? "a" : "i");
 		}
 
+		/**
+		 * Jaccard similarity of the targets, using the bitsets.
+		 */
 		double getSimilarity(Row other)
 		{
-			return CollectionUtil.getJaccardSimilarity(targets, other.targets);
+			int inter = 0;
+			int union = 0;
+
+			for (int i = 0; i < bits.length; i++)
+			{
+				inter += Long.bitCount(bits[i] & other.bits[i]);
+				union += Long.bitCount(bits[i] | other.bits[i]);
+			}
+
+			return union == 0 ? 0 : inter / (double) union;
 		}
 	}
 
@@ -0,0 +1,213 @@
+package org.panda.tfactivity;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Records the content hashes of the inputs of a run, so that a rerun can tell whether anything changed. Inputs are
+ * hashed in two parts: the analysis part covers the parameters that affect the statistics and the content of the
+ * groups, expression, network and network snapshot files; the graph part covers the parameters that only affect the
+ * similarity graph. When no network file is given, the sources of the default network are covered instead. For a
+ * meta-analysis, the expression and groups files of the datasets in the list file are covered as well.
+ *
+ * Content hashes of the files are kept for the lifetime of the process, keyed on the path, size and modification time
+ * of the file, so that the jobs of a batch or a server do not hash the same large files again.
+ *
+ * @author Ozgun Babur
+ */
+public class RunManifest
+{
+	/**
+	 * Name of the manifest file in the run directory.
+	 */
+	public static final String MANIFEST_FILENAME = "run-manifest.txt";
+
+	/**
+	 * Parameters that only affect the similarity graph.
+	 */
+	static final Set<String> GRAPH_PARAMETERS = new HashSet<>(Arrays.asList(
+		"jaccard-similarity-threshold", "approximate-similarity-graph"));
+
+	/**
+	 * Parameters whose values are files to hash the content of.
+	 */
+	static final List<String> FILE_PARAMETERS = Arrays.asList(
+		"expression-file", "groups-file", "network-file", "network-snapshot");
+
+	/**
+	 * Content hashes of the files, keyed on their path, size and modification time.
+	 */
+	static final Map<String, String> FILE_HASHES = new ConcurrentHashMap<>();
+
+	String analysisHash;
+	String graphHash;
+
+	/**
+	 * Hashes the inputs of the run.
+	 *
+	 * @param dir the run directory, to resolve relative file paths
+	 * @param parameterLines lines of the parameters file
+	 */
+	public RunManifest(String dir, List<String> parameterLines) throws IOException
+	{
+		List<String[]> params = parameterLines.stream().filter(l -> !l.startsWith("#")).map(l -> l.split("="))
+			.filter(t -> t.length == 2).map(t -> new String[]{t[0].trim(), t[1].trim()})
+			.collect(Collectors.toList());
+
+		MessageDigest analysis = newDigest();
+		MessageDigest graph = newDigest();
+
+		params.stream().map(t -> t[0] + "=" + t[1]).sorted().forEach(line ->
+		{
+			String key = line.substring(0, line.indexOf("="));
+			(GRAPH_PARAMETERS.contains(key) ? graph : analysis).update(line.getBytes(StandardCharsets.UTF_8));
+		});
+
+		for (String fileParam : FILE_PARAMETERS)
+		{
+			for (String[] t : params)
+			{
+				if (t[0].equals(fileParam))
+				{
+					String file = t[1].startsWith("/") ? t[1] : dir + File.separator + t[1];
+					analysis.update(hashFile(Paths.get(file)).getBytes(StandardCharsets.UTF_8));
+
+					if (fileParam.equals("expression-file") && isMeta(params) && Files.exists(Paths.get(file)))
+					{
+						for (MetaExpressionProvider.Dataset dataset : MetaExpressionProvider.readDatasets(file))
+						{
+							analysis.update(hashFile(Paths.get(dataset.expressionFile))
+								.getBytes(StandardCharsets.UTF_8));
+							analysis.update(hashFile(Paths.get(dataset.groupsFile)).getBytes(StandardCharsets.UTF_8));
+						}
+					}
+				}
+			}
+		}
+
+		if (params.stream().noneMatch(t -> t[0].equals("network-file")))
+		{
+			boolean signed = params.stream().anyMatch(t ->
+				t[0].equals("consider-edge-signs") && Boolean.valueOf(t[1]));
+
+			for (String source : NetworkLoader.getDefaultSources(signed))
+			{
+				analysis.update(hashFile(Paths.get(source)).getBytes(StandardCharsets.UTF_8));
+			}
+		}
+
+		analysisHash = toHex(analysis.digest());
+		graphHash = toHex(graph.digest());
+	}
+
+	private RunManifest(String analysisHash, String graphHash)
+	{
+		this.analysisHash = analysisHash;
+		this.graphHash = graphHash;
+	}
+
+	/**
+	 * Reads the manifest of the previous run in the directory.
+	 *
+	 * @return the manifest, or null if there is none
+	 */
+	public static RunManifest read(String dir) throws IOException
+	{
+		Path path = Paths.get(dir + File.separator + MANIFEST_FILENAME);
+		if (!Files.exists(path)) return null;
+
+		Map<String, String> map = Files.lines(path).map(l -> l.split("=")).filter(t -> t.length == 2)
+			.collect(Collectors.toMap(t -> t[0].trim(), t -> t[1].trim()));
+
+		if (!map.containsKey("analysis") || !map.containsKey("graph")) return null;
+		return new RunManifest(map.get("analysis"), map.get("graph"));
+	}
+
+	public void write(String dir) throws IOException
+	{
+		BufferedWriter writer = Files.newBufferedWriter(Paths.get(dir + File.separator + MANIFEST_FILENAME));
+		writer.write("analysis = " + analysisHash + "\ngraph = " + graphHash);
+		writer.close();
+	}
+
+	public boolean sameAnalysis(RunManifest other)
+	{
+		return other != null && analysisHash.equals(other.analysisHash);
+	}
+
+	public boolean sameGraph(RunManifest other)
+	{
+		return other != null && graphHash.equals(other.graphHash);
+	}
+
+	/**
+	 * Whether the expression file is a list of datasets to combine.
+	 */
+	private static boolean isMeta(List<String[]> params)
+	{
+		return params.stream().anyMatch(t -> t[0].equals("expression-resource-type") &&
+			ExpressionResourceType.get(t[1]) == ExpressionResourceType.Meta);
+	}
+
+	private static String hashFile(Path path) throws IOException
+	{
+		if (!Files.exists(path)) return "missing:" + path;
+
+		String key = NetworkSnapshot.getFingerprint(Collections.singletonList(path.toString()));
+		String hash = FILE_HASHES.get(key);
+		if (hash == null)
+		{
+			hash = hashContent(path);
+			FILE_HASHES.put(key, hash);
+		}
+		return hash;
+	}
+
+	private static String hashContent(Path path) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		byte[] buf = new byte[1 << 16];
+
+		try (InputStream in = Files.newInputStream(path))
+		{
+			for (int n = in.read(buf); n > 0; n = in.read(buf))
+			{
+				digest.update(buf, 0, n);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+		{
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,242 @@
+package org.panda.tfactivity;
+
+import jdk.jfr.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Collects the metrics of a run: wall time, CPU time and allocated bytes of each stage, permutation throughput, and
+ * cache statistics. Each measurement is also emitted as a custom JFR event, so it shows up in flight recordings, and
+ * all of them are written to a JSON report at the end of the run.
+ *
+ * CPU time and allocation are measured on the thread that runs a stage. Work that the stage hands to other threads,
+ * such as parallel streams, is not included in those two.
+ *
+ * @author Ozgun Babur
+ */
+public class RunMetrics
+{
+	/**
+	 * Measured stages, in order of completion.
+	 */
+	final List<StageMetric> stages = Collections.synchronizedList(new ArrayList<>());
+
+	/**
+	 * Other recorded values, keyed by name.
+	 */
+	final Map<String, Object> values = Collections.synchronizedMap(new LinkedHashMap<>());
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * Runs the task as a measured stage.
+	 *
+	 * @param name name of the stage
+	 * @param task the job of the stage
+	 * @return result of the task
+	 */
+	public <T> T measure(String name, StageDAG.StageTask<T> task) throws IOException
+	{
+		StageEvent event = new StageEvent();
+		event.stage = name;
+		event.begin();
+
+		long wall = System.nanoTime();
+		long cpu = getCPUTime();
+		long alloc = getAllocatedBytes();
+
+		try
+		{
+			return task.run();
+		}
+		finally
+		{
+			StageMetric m = new StageMetric(name, System.nanoTime() - wall,
+				cpu < 0 ? -1 : getCPUTime() - cpu, alloc < 0 ? -1 : getAllocatedBytes() - alloc);
+			stages.add(m);
+
+			event.cpuTime = m.cpuNanos;
+			event.allocatedBytes = m.allocatedBytes;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Records the throughput of a permutation run.
+	 *
+	 * @param name name of the analysis
+	 * @param iterations number of permutations
+	 * @param nanos time spent for the permutations
+	 */
+	public void recordPermutations(String name, int iterations, long nanos)
+	{
+		double rate = nanos == 0 ? 0 : iterations / (nanos / 1E9);
+		record(name + ".permutation.iterations", iterations);
+		record(name + ".permutation.iterations-per-second", rate);
+
+		PermutationEvent event = new PermutationEvent();
+		event.analysis = name;
+		event.iterations = iterations;
+		event.iterationsPerSecond = rate;
+		event.commit();
+	}
+
+	/**
+	 * Records the hit statistics of a cache.
+	 *
+	 * @param name name of the cache
+	 * @param hits number of hits
+	 * @param misses number of misses
+	 */
+	public void recordCache(String name, long hits, long misses)
+	{
+		double rate = hits + misses == 0 ? 0 : hits / (double) (hits + misses);
+		record(name + ".hits", hits);
+		record(name + ".misses", misses);
+		record(name + ".hit-rate", rate);
+
+		CacheEvent event = new CacheEvent();
+		event.cache = name;
+		event.hits = hits;
+		event.misses = misses;
+		event.hitRate = rate;
+		event.commit();
+	}
+
+	public void record(String key, Object value)
+	{
+		values.put(key, value);
+	}
+
+	/**
+	 * Writes the metrics as a JSON report.
+	 */
+	public void writeJSON(String file) throws IOException
+	{
+		BufferedWriter writer = Files.newBufferedWriter(Paths.get(file));
+		writer.write("{\n  \"stages\": [");
+
+		List<StageMetric> stageList;
+		synchronized (stages)
+		{
+			stageList = new ArrayList<>(stages);
+		}
+
+		for (int i = 0; i < stageList.size(); i++)
+		{
+			StageMetric m = stageList.get(i);
+			writer.write((i > 0 ? "," : "") + "\n    {\"name\": " + quote(m.name) +
+				", \"wall-ms\": " + m.wallNanos / 1E6 +
+				", \"cpu-ms\": " + (m.cpuNanos < 0 ? "null" : String.valueOf(m.cpuNanos / 1E6)) +
+				", \"allocated-bytes\": " + (m.allocatedBytes < 0 ? "null" : String.valueOf(m.allocatedBytes)) + "}");
+		}
+		writer.write("\n  ],\n  \"values\": {");
+
+		Map<String, Object> valueMap;
+		synchronized (values)
+		{
+			valueMap = new LinkedHashMap<>(values);
+		}
+
+		int i = 0;
+		for (String key : valueMap.keySet())
+		{
+			Object v = valueMap.get(key);
+			writer.write((i++ > 0 ? "," : "") + "\n    " + quote(key) + ": " +
+				(v instanceof Number || v instanceof Boolean ? String.valueOf(v) : quote(String.valueOf(v))));
+		}
+		writer.write("\n  }\n}\n");
+		writer.close();
+	}
+
+	private static String quote(String s)
+	{
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static long getCPUTime()
+	{
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+
+	private static long getAllocatedBytes()
+	{
+		if (THREADS instanceof com.sun.management.ThreadMXBean)
+		{
+			return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	static class StageMetric
+	{
+		String name;
+		long wallNanos;
+		long cpuNanos;
+		long allocatedBytes;
+
+		StageMetric(String name, long wallNanos, long cpuNanos, long allocatedBytes)
+		{
+			this.name = name;
+			this.wallNanos = wallNanos;
+			this.cpuNanos = cpuNanos;
+			this.allocatedBytes = allocatedBytes;
+		}
+	}
+
+	@Name("org.panda.tfactivity.Stage")
+	@Label("TF Activity Stage")
+	@Category("TF Activity")
+	static class StageEvent extends Event
+	{
+		@Label("Stage")
+		String stage;
+
+		@Label("CPU Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long cpuTime;
+
+		@Label("Allocated Bytes")
+		@DataAmount
+		long allocatedBytes;
+	}
+
+	@Name("org.panda.tfactivity.Permutations")
+	@Label("TF Activity Permutations")
+	@Category("TF Activity")
+	static class PermutationEvent extends Event
+	{
+		@Label("Analysis")
+		String analysis;
+
+		@Label("Iterations")
+		int iterations;
+
+		@Label("Iterations per Second")
+		double iterationsPerSecond;
+	}
+
+	@Name("org.panda.tfactivity.Cache")
+	@Label("TF Activity Cache")
+	@Category("TF Activity")
+	static class CacheEvent extends Event
+	{
+		@Label("Cache")
+		String cache;
+
+		@Label("Hits")
+		long hits;
+
+		@Label("Misses")
+		long misses;
+
+		@Label("Hit Rate")
+		double hitRate;
+	}
+}
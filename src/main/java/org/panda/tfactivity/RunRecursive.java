@@ -4,28 +4,98 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
- * Executes CausalPath recursively starting from the given directory, and navigating through subdirectories.
+ * Executes the analysis recursively starting from the given directory, and navigating through subdirectories. All
+ * jobs are discovered first, and then run in parallel, grouped by their expression file and network, so that the
+ * shared resources are loaded once and used together.
  *
  * @author Ozgun Babur
  */
 public class RunRecursive
 {
+	/**
+	 * Maximum number of jobs to run at the same time.
+	 */
+	int concurrency;
+
+	/**
+	 * Whether to skip the directories whose inputs did not change since their last run, and to only redraw the graph
+	 * when only the graph parameters changed.
+	 */
+	boolean incremental;
+
+	/**
+	 * Resources shared by the jobs.
+	 */
+	ResourceCache resources;
+
+	AtomicInteger completed = new AtomicInteger();
+	AtomicInteger failed = new AtomicInteger();
+	AtomicInteger skipped = new AtomicInteger();
+	AtomicInteger graphOnly = new AtomicInteger();
+	List<String> failedDirs = Collections.synchronizedList(new ArrayList<>());
+
+	public RunRecursive(int concurrency, boolean incremental)
+	{
+		this.concurrency = concurrency;
+		this.incremental = incremental;
+		this.resources = new ResourceCache(Runtime.getRuntime().maxMemory() / 2);
+	}
+
+	/**
+	 * @param args root directory, optionally followed by the maximum number of concurrent jobs and "incremental"
+	 */
 	public static void main(String[] args) throws IOException
 	{
-		run(args[0]);
+		int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		boolean incremental = Arrays.asList(args).contains("incremental");
+
+		new RunRecursive(concurrency, incremental).run(args[0]);
+	}
+
+	public void run(String root) throws IOException
+	{
+		List<Job> jobs = new ArrayList<>();
+		discover(root, jobs);
+
+		// jobs that share resources are adjacent in the submission order
+		jobs.sort(Comparator.comparing((Job j) -> j.resourceKey).thenComparing(j -> j.dir));
+
+		System.out.println("Found " + jobs.size() + " jobs in " +
+			jobs.stream().map(j -> j.resourceKey).distinct().count() + " resource groups");
+
+		ForkJoinPool pool = new ForkJoinPool(concurrency);
+		jobs.forEach(job -> pool.execute(() -> runJob(job)));
+		pool.shutdown();
+
+		try
+		{
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			pool.shutdownNow();
+		}
+
+		System.out.println("Completed: " + completed + " (graph only: " + graphOnly + "), Failed: " + failed +
+			", Skipped: " + skipped);
+		failedDirs.stream().sorted().forEach(dir -> System.out.println("Failed: " + dir));
 	}
 
-	private static void run(String dir) throws IOException
+	private void discover(String dir, List<Job> jobs) throws IOException
 	{
 		if (Files.isDirectory(Paths.get(dir)))
 		{
-			if (Files.exists(Paths.get(dir + File.separator + "parameters.txt")))
-//				&&
-//				!Files.exists(Paths.get(dir + File.separator + "TF-activity-results.txt")))
+			if (Files.exists(Paths.get(dir + File.separator + Main.PARAMETERS_FILENAME)))
 			{
-				Main.main(new String[]{dir});
+				jobs.add(new Job(dir));
 			}
 			else
 			{
@@ -33,10 +103,68 @@ public class RunRecursive
 				{
 					if (file.isDirectory())
 					{
-						run(file.getPath());
+						discover(file.getPath(), jobs);
 					}
 				}
 			}
 		}
 	}
+
+	private void runJob(Job job)
+	{
+		try
+		{
+			Main main = new Main(job.dir, null, resources);
+
+			if (incremental)
+			{
+				switch (main.runIncremental())
+				{
+					case SKIPPED: skipped.incrementAndGet(); break;
+					case GRAPH_ONLY: graphOnly.incrementAndGet(); completed.incrementAndGet(); break;
+					default: completed.incrementAndGet();
+				}
+			}
+			else
+			{
+				main.runAnalysis();
+				completed.incrementAndGet();
+			}
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			failed.incrementAndGet();
+			failedDirs.add(job.dir);
+		}
+
+		System.out.println("Progress: " + (completed.get() + failed.get() + skipped.get()) + " done");
+	}
+
+	/**
+	 * A directory with a parameters file, and the key of the resources it uses.
+	 */
+	static class Job
+	{
+		String dir;
+		String resourceKey;
+
+		Job(String dir) throws IOException
+		{
+			this.dir = dir;
+
+			Map<String, String> params = Files.lines(Paths.get(dir + File.separator + Main.PARAMETERS_FILENAME))
+				.filter(l -> !l.startsWith("#")).map(l -> l.split("=")).filter(t -> t.length == 2)
+				.collect(Collectors.toMap(t -> t[0].trim(), t -> t[1].trim(), (v1, v2) -> v2));
+
+			resourceKey = resolve(params.get("expression-file")) + "\t" + params.get("consider-edge-signs") + "\t" +
+				resolve(params.get("network-file"));
+		}
+
+		private String resolve(String file)
+		{
+			if (file == null || file.startsWith("/")) return file;
+			return dir + "/" + file;
+		}
+	}
 }
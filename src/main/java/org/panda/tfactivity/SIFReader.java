@@ -0,0 +1,203 @@
+package org.panda.tfactivity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Parallel reader for SIF files. The file is memory-mapped and split into line-aligned chunks, at least one per core,
+ * and the tab-separated fields of each chunk are parsed in parallel without regular expressions. Chunks are parsed in
+ * batches of one chunk per core, and each batch is merged into the network in file order before the next one is
+ * parsed, so the parsed lines held in memory are bounded by the batch size rather than the file size. When an edge
+ * appears more than once the last occurrence wins, as in a sequential read.
+ *
+ * Lines with less than three fields are skipped.
+ *
+ * @author Ozgun Babur
+ */
+public class SIFReader
+{
+	/**
+	 * Maximum size of a chunk. Bounds the parsed lines held in memory at once, to this times the number of cores.
+	 */
+	private static final long MAX_CHUNK_SIZE = 1 << 24;
+
+	/**
+	 * Reads the SIF file as a signed network. Relation types starting with "u" (as in upregulates-expression) are
+	 * positive, others are negative.
+	 */
+	public static Map<String, Map<String, Integer>> readSigned(String file) throws IOException
+	{
+		Map<String, Map<String, Integer>> map = new HashMap<>();
+
+		readChunks(file, t ->
+			map.computeIfAbsent(t[0], k -> new HashMap<>()).put(t[2], t[1].startsWith("u") ? 1 : -1));
+		return map;
+	}
+
+	/**
+	 * Reads the SIF file as an unsigned network, ignoring relation types.
+	 */
+	public static Map<String, Set<String>> readUnsigned(String file) throws IOException
+	{
+		Map<String, Set<String>> map = new HashMap<>();
+
+		readChunks(file, t -> map.computeIfAbsent(t[0], k -> new HashSet<>()).add(t[2]));
+		return map;
+	}
+
+	/**
+	 * Parses the chunks of the file in parallel batches, and passes the parsed (source, type, target) triplets of each
+	 * batch to the consumer in file order, on the calling thread.
+	 */
+	static void readChunks(String file, Consumer<String[]> consumer) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ))
+		{
+			long[] bounds = getChunkBounds(channel);
+			int chunks = bounds.length - 1;
+			int batch = Runtime.getRuntime().availableProcessors();
+
+			for (int from = 0; from < chunks; from += batch)
+			{
+				List<List<String[]>> parsed;
+				try
+				{
+					parsed = IntStream.range(from, Math.min(chunks, from + batch)).parallel().mapToObj(i ->
+					{
+						try
+						{
+							return parseChunk(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i],
+								bounds[i + 1] - bounds[i]));
+						}
+						catch (IOException e)
+						{
+							throw new UncheckedIOException(e);
+						}
+					}).collect(Collectors.toList());
+				}
+				catch (UncheckedIOException e)
+				{
+					throw e.getCause();
+				}
+
+				for (List<String[]> chunk : parsed)
+				{
+					chunk.forEach(consumer);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Splits the file into chunks that end right after a line break.
+	 *
+	 * @return chunk boundaries, starting with 0 and ending with the file size
+	 */
+	private static long[] getChunkBounds(FileChannel channel) throws IOException
+	{
+		long size = channel.size();
+		int cores = Runtime.getRuntime().availableProcessors();
+		long chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, (size + cores - 1) / cores));
+
+		List<Long> bounds = new ArrayList<>();
+		bounds.add(0L);
+
+		long pos = 0;
+		while (pos < size)
+		{
+			long end = Math.min(size, pos + chunkSize);
+
+			if (end < size)
+			{
+				// extend the chunk to the end of the current line
+				MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, end,
+					Math.min(MAX_CHUNK_SIZE, size - end));
+
+				while (buf.hasRemaining() && buf.get() != '\n') end++;
+				if (end < size) end++;
+			}
+
+			bounds.add(end);
+			pos = end;
+		}
+
+		long[] arr = new long[bounds.size()];
+		for (int i = 0; i < arr.length; i++)
+		{
+			arr[i] = bounds.get(i);
+		}
+		return arr;
+	}
+
+	/**
+	 * Parses the lines in the buffer. Gene symbols repeat a lot, so the strings are deduplicated within the chunk.
+	 */
+	private static List<String[]> parseChunk(MappedByteBuffer buf)
+	{
+		List<String[]> edges = new ArrayList<>();
+		Map<String, String> pool = new HashMap<>();
+
+		byte[] scratch = new byte[256];
+		int[] starts = new int[3];
+		int[] ends = new int[3];
+
+		int limit = buf.limit();
+		int lineStart = 0;
+
+		while (lineStart < limit)
+		{
+			int lineEnd = lineStart;
+			while (lineEnd < limit && buf.get(lineEnd) != '\n') lineEnd++;
+
+			int contentEnd = lineEnd;
+			if (contentEnd > lineStart && buf.get(contentEnd - 1) == '\r') contentEnd--;
+
+			// locate the first three fields
+			int field = 0;
+			int fieldStart = lineStart;
+			for (int i = lineStart; i <= contentEnd && field < 3; i++)
+			{
+				if (i == contentEnd || buf.get(i) == '\t')
+				{
+					starts[field] = fieldStart;
+					ends[field] = i;
+					field++;
+					fieldStart = i + 1;
+				}
+			}
+
+			if (field == 3)
+			{
+				String[] t = new String[3];
+				for (int f = 0; f < 3; f++)
+				{
+					int len = ends[f] - starts[f];
+					if (len > scratch.length) scratch = new byte[len];
+
+					for (int i = 0; i < len; i++)
+					{
+						scratch[i] = buf.get(starts[f] + i);
+					}
+
+					String s = new String(scratch, 0, len, StandardCharsets.UTF_8);
+					String pooled = pool.putIfAbsent(s, s);
+					t[f] = pooled == null ? s : pooled;
+				}
+				edges.add(t);
+			}
+
+			lineStart = lineEnd + 1;
+		}
+
+		return edges;
+	}
+}
@@ -0,0 +1,264 @@
+package org.panda.tfactivity;
+
+import org.panda.resource.tcga.ExpressionReader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Scores the activity of each TF in each sample, instead of a two-group contrast. The expression matrix is
+ * standardized once, so that each gene has zero mean and unit variance over the samples. The score of a TF in a sample
+ * is the signed sum of the standardized expression of its targets, divided by the square root of the sum of the
+ * squared weights. If the target expressions are independent standard normals, the score is a standard normal as well,
+ * which gives its p-value without permutations.
+ *
+ * The network is held as a sparse matrix of TFs by target genes, and the expression as a dense matrix of genes by
+ * samples, so the scores are a sparse-dense matrix product. The product is calculated in blocks of samples, in parallel.
+ *
+ * @author Ozgun Babur
+ */
+public class SampleActivityScorer
+{
+	/**
+	 * The default name of the score matrix file.
+	 */
+	public static final String SCORES_FILENAME = "TF-activity-per-sample.txt";
+
+	/**
+	 * The default name of the p-value matrix file.
+	 */
+	public static final String PVALS_FILENAME = "TF-activity-per-sample-pvals.txt";
+
+	/**
+	 * Number of samples in a block of the product. Keeps the accumulated scores of a block in the CPU cache.
+	 */
+	static final int BLOCK_SIZE = 256;
+
+	String[] samples;
+
+	/**
+	 * Genes that have variance in the expression matrix, in the row order of the standardized matrix.
+	 */
+	String[] genes;
+	Map<String, Integer> geneIndex;
+
+	/**
+	 * Standardized expression, as a row-major genes by samples matrix. Sized for all genes of the matrix, so the rows
+	 * after the standardized genes are unused.
+	 */
+	float[] z;
+
+	/**
+	 * Scored TFs, in the row order of the weight and score matrices.
+	 */
+	String[] tfs;
+
+	/**
+	 * Signed weights of the TFs, in compressed sparse row form. Row i spans rowPtr[i] to rowPtr[i + 1] of the target
+	 * and weight arrays.
+	 */
+	int[] rowPtr;
+	int[] targets;
+	float[] weights;
+
+	/**
+	 * Scores, as a row-major TFs by samples matrix.
+	 */
+	float[] scores;
+
+	/**
+	 * Standardizes the expression of all samples, writing each row directly into the matrix. Missing values are set to
+	 * the mean.
+	 */
+	public SampleActivityScorer(ExpressionReader er)
+	{
+		samples = er.getSamples().stream().sorted().toArray(String[]::new);
+		int n = samples.length;
+
+		Set<String> all = new TreeSet<>(er.getGenes());
+		List<String> geneList = new ArrayList<>();
+		geneIndex = new HashMap<>();
+		z = new float[Math.multiplyExact(all.size(), n)];
+
+		for (String gene : all)
+		{
+			double[] v = er.getGeneAlterationArray(gene, samples);
+			if (v == null) continue;
+
+			double sum = 0, sumSq = 0;
+			int cnt = 0;
+			for (double x : v)
+			{
+				if (!Double.isNaN(x))
+				{
+					sum += x;
+					sumSq += x * x;
+					cnt++;
+				}
+			}
+			if (cnt < 2) continue;
+
+			double mean = sum / cnt;
+			double sd = Math.sqrt((sumSq - cnt * mean * mean) / (cnt - 1));
+			if (!(sd > 0)) continue;
+
+			int offset = geneList.size() * n;
+			for (int i = 0; i < n; i++)
+			{
+				z[offset + i] = Double.isNaN(v[i]) ? 0 : (float) ((v[i] - mean) / sd);
+			}
+			geneIndex.put(gene, geneList.size());
+			geneList.add(gene);
+		}
+
+		genes = geneList.toArray(new String[geneList.size()]);
+	}
+
+	/**
+	 * Scores the TFs of the signed network in all samples. Targets that have no standardized expression are ignored.
+	 *
+	 * @param network signed network, where the sign of each edge is 1 or -1
+	 * @param minTargets minimum number of targets with expression for a TF to be scored
+	 */
+	public void score(Map<String, Map<String, Integer>> network, int minTargets)
+	{
+		buildWeights(network, minTargets);
+
+		int n = samples.length;
+		scores = new float[tfs.length * n];
+
+		IntStream.range(0, (n + BLOCK_SIZE - 1) / BLOCK_SIZE).parallel().forEach(b ->
+		{
+			int from = b * BLOCK_SIZE;
+			int to = Math.min(from + BLOCK_SIZE, n);
+			double[] acc = new double[to - from];
+
+			for (int t = 0; t < tfs.length; t++)
+			{
+				Arrays.fill(acc, 0);
+				double sumSq = 0;
+
+				for (int k = rowPtr[t]; k < rowPtr[t + 1]; k++)
+				{
+					float w = weights[k];
+					int offset = targets[k] * n;
+					sumSq += w * w;
+
+					for (int s = from; s < to; s++)
+					{
+						acc[s - from] += w * z[offset + s];
+					}
+				}
+
+				double norm = 1 / Math.sqrt(sumSq);
+				for (int s = from; s < to; s++)
+				{
+					scores[t * n + s] = (float) (acc[s - from] * norm);
+				}
+			}
+		});
+	}
+
+	private void buildWeights(Map<String, Map<String, Integer>> network, int minTargets)
+	{
+		List<String> tfList = new ArrayList<>();
+		List<int[]> targetList = new ArrayList<>();
+		List<float[]> weightList = new ArrayList<>();
+
+		for (String tf : new TreeSet<>(network.keySet()))
+		{
+			Map<String, Integer> edges = network.get(tf);
+			int[] t = new int[edges.size()];
+			float[] w = new float[edges.size()];
+			int cnt = 0;
+
+			for (String target : new TreeSet<>(edges.keySet()))
+			{
+				Integer g = geneIndex.get(target);
+				if (g != null)
+				{
+					t[cnt] = g;
+					w[cnt++] = edges.get(target);
+				}
+			}
+
+			if (cnt >= minTargets && cnt > 0)
+			{
+				tfList.add(tf);
+				targetList.add(Arrays.copyOf(t, cnt));
+				weightList.add(Arrays.copyOf(w, cnt));
+			}
+		}
+
+		tfs = tfList.toArray(new String[tfList.size()]);
+		rowPtr = new int[tfs.length + 1];
+		for (int i = 0; i < tfs.length; i++)
+		{
+			rowPtr[i + 1] = rowPtr[i] + targetList.get(i).length;
+		}
+
+		targets = new int[rowPtr[tfs.length]];
+		weights = new float[targets.length];
+		for (int i = 0; i < tfs.length; i++)
+		{
+			System.arraycopy(targetList.get(i), 0, targets, rowPtr[i], targetList.get(i).length);
+			System.arraycopy(weightList.get(i), 0, weights, rowPtr[i], weightList.get(i).length);
+		}
+	}
+
+	/**
+	 * Writes the score matrix, and optionally the matrix of the two-tailed p-values of the scores. Rows are TFs and
+	 * columns are samples.
+	 *
+	 * @param scoresFile file for the scores
+	 * @param pvalsFile file for the p-values, or null to skip
+	 */
+	public void write(String scoresFile, String pvalsFile) throws IOException
+	{
+		writeMatrix(scoresFile, false);
+		if (pvalsFile != null) writeMatrix(pvalsFile, true);
+	}
+
+	private void writeMatrix(String file, boolean pvals) throws IOException
+	{
+		int n = samples.length;
+		BufferedWriter writer = Files.newBufferedWriter(Paths.get(file));
+		writer.write("TF\t" + String.join("\t", samples));
+
+		for (int t = 0; t < tfs.length; t++)
+		{
+			writer.write("\n" + tfs[t]);
+			for (int s = 0; s < n; s++)
+			{
+				float score = scores[t * n + s];
+				writer.write("\t" + (pvals ? String.valueOf(getTwoTailedPValue(score)) : String.valueOf(score)));
+			}
+		}
+		writer.close();
+	}
+
+	/**
+	 * Two-tailed p-value of a standard normal score.
+	 */
+	static double getTwoTailedPValue(double score)
+	{
+		return Math.min(1, erfc(Math.abs(score) / Math.sqrt(2)));
+	}
+
+	/**
+	 * Complementary error function, with fractional error less than 1.2E-7.
+	 */
+	static double erfc(double x)
+	{
+		double z = Math.abs(x);
+		double t = 1 / (1 + 0.5 * z);
+		double ans = t * Math.exp(-z * z - 1.26551223 + t * (1.00002368 + t * (0.37409196 + t * (0.09678418 +
+			t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398 + t * (1.48851587 +
+			t * (-0.82215223 + t * 0.17087277)))))))));
+		return x >= 0 ? ans : 2 - ans;
+	}
+}
@@ -1,13 +1,14 @@
 package org.panda.tfactivity;
 
 import org.panda.utility.Progress;
-import org.panda.utility.statistics.FDR;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
 /**
@@ -25,6 +26,86 @@ public class SignedAnalysis
 	 */
 	DiscreteExpressionProvider expProv;
 
+	/**
+	 * Reported results, as they are written to the output file.
+	 */
+	List<ResultListToGraph.Row> results;
+
+	/**
+	 * Metrics of the run, to record the permutation throughput. Can be null.
+	 */
+	RunMetrics metrics;
+
+	/**
+	 * Whether to extrapolate the p-values of the TFs that are rarely exceeded in permutations, by fitting the tail of
+	 * their null statistics.
+	 */
+	boolean tailExtrapolation;
+
+	/**
+	 * Seed of the permutation stream. When null, permutations are not reproducible.
+	 */
+	Long seed;
+
+	/**
+	 * Index of the shard of the permutations to run, starting from 0, and the number of shards.
+	 */
+	int shardIndex = 0;
+	int shardCount = 1;
+
+	/**
+	 * Wall-clock time allowed for the permutations, in nanoseconds. 0 means no limit.
+	 */
+	long timeBudget;
+
+	/**
+	 * Memory allowed for the permutation buffers, in bytes. 0 means no limit.
+	 */
+	long maxMemory;
+
+	/**
+	 * Tells whether the run is cancelled. Can be null.
+	 */
+	BooleanSupplier cancelled;
+
+	/**
+	 * File to write the counts of the finished permutations to when the run is cancelled. Can be null.
+	 */
+	String partialCountsFile;
+
+	/**
+	 * Why the last run of the permutations did fewer permutations than requested, or null if it did all of them.
+	 */
+	String stopReason;
+
+	/**
+	 * Whether to derive the leave-one-target-out influence from the permutations.
+	 */
+	boolean targetInfluence;
+
+	/**
+	 * Influence of the supporting targets, from the last run of the permutations. Null unless requested.
+	 */
+	TargetInfluence influence;
+
+	/**
+	 * Largest array that the JVM can allocate.
+	 */
+	static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	/**
+	 * Number of permutations to run before the first estimate of the throughput for the time budget. The estimate is
+	 * repeated each time the number of permutations doubles, from the permutations since the previous estimate, so
+	 * that the slower permutations before the JIT compilation do not shorten the run.
+	 */
+	static final int WARMUP_ITERATIONS = 20;
+
+	/**
+	 * Fraction of the remaining time budget that the planned permutations may use, leaving room for the variance of
+	 * the throughput.
+	 */
+	static final double TIME_BUDGET_MARGIN = 0.95;
+
 	public SignedAnalysis(Map<String, Map<String, Integer>> network, DiscreteExpressionProvider expProv)
 	{
 		this.network = network;
@@ -33,52 +114,373 @@ public class SignedAnalysis
 
 	public void run(String outFile, int iterations, double fdrThr) throws IOException
 	{
-		Map<String, int[]> counts = getActivityEvidenceCounts(network, expProv);
-		Map<String, double[]> pValues = getActivityPValues(network, expProv, counts, iterations);
-		writeResults(outFile, network, expProv, pValues, fdrThr);
+		Map<String, double[]> pValues = calculatePValues(iterations);
+		writeResults(outFile, pValues, fdrThr);
+	}
+
+	public void setMetrics(RunMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public void setTailExtrapolation(boolean tailExtrapolation)
+	{
+		this.tailExtrapolation = tailExtrapolation;
+	}
+
+	public void setSeed(Long seed)
+	{
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the time budget of the permutations. The number of iterations becomes an upper limit, and the permutations
+	 * stop when the throughput shows that the next ones would not fit in the budget.
+	 */
+	public void setTimeBudget(long nanos)
+	{
+		this.timeBudget = nanos;
+	}
+
+	/**
+	 * Sets the memory budget of the permutation buffers, which limits the number of iterations when the null
+	 * statistics are kept for the tail extrapolation.
+	 */
+	public void setMaxMemory(long bytes)
+	{
+		this.maxMemory = bytes;
+	}
+
+	/**
+	 * Sets the check for the cancellation of the run. A cancelled or interrupted run stops the permutations, writes
+	 * the counts of the finished ones to the partial counts file, and fails.
+	 */
+	public void setCancelled(BooleanSupplier cancelled)
+	{
+		this.cancelled = cancelled;
+	}
+
+	/**
+	 * Sets the file to write the counts of the finished permutations to when the run is cancelled or interrupted.
+	 */
+	public void setPartialCountsFile(String partialCountsFile)
+	{
+		this.partialCountsFile = partialCountsFile;
+	}
+
+	/**
+	 * Sets whether to derive the leave-one-target-out p-values of the supporting targets from the same permutations.
+	 * Not available for sharded permutations.
+	 */
+	public void setTargetInfluence(boolean targetInfluence)
+	{
+		this.targetInfluence = targetInfluence;
+	}
+
+	/**
+	 * Writes the influence of the supporting targets of the reported TFs, after the results are written.
+	 */
+	public void writeInfluence(String file) throws IOException
+	{
+		if (influence == null) throw new IllegalStateException("Target influence is not calculated");
+		influence.write(file, results);
+	}
+
+	/**
+	 * Gets why the last run of the permutations did fewer permutations than requested, such as running out of the
+	 * time budget, or null if it did all of them.
+	 */
+	public String getStopReason()
+	{
+		return stopReason;
+	}
+
+	/**
+	 * Restricts the permutations to a shard of the seeded permutation stream.
+	 *
+	 * @param index index of the shard, starting from 0
+	 * @param count number of shards
+	 */
+	public void setShard(int index, int count)
+	{
+		this.shardIndex = index;
+		this.shardCount = count;
+	}
+
+	/**
+	 * Calculates the activation and inhibition p-values of the TFs with the given number of permutations.
+	 */
+	public Map<String, double[]> calculatePValues(int iterations)
+	{
+		// TFs with identical signed targets are evaluated only once
+		TargetSignatureGroups<Map<String, Integer>> groups = new TargetSignatureGroups<>(network);
+		Map<String, Map<String, Integer>> reduced = groups.getReducedNetwork();
+		recordGroups(groups);
+
+		Map<String, int[]> counts = getActivityEvidenceCounts(reduced, expProv);
+
+		if (targetInfluence)
+		{
+			Map<String, String> representatives = groups.expand(reduced.keySet().stream()
+				.collect(Collectors.toMap(tf -> tf, tf -> tf)));
+			influence = new TargetInfluence(reduced, counts, expProv, representatives);
+		}
+
+		return groups.expand(getActivityPValues(reduced, expProv, counts, iterations));
+	}
+
+	/**
+	 * Runs the shard of the permutations, and gets the exceedance counts of the TFs that represent their target
+	 * signature groups.
+	 */
+	public PermutationCounts calculateShardCounts(int iterations)
+	{
+		TargetSignatureGroups<Map<String, Integer>> groups = new TargetSignatureGroups<>(network);
+		Map<String, Map<String, Integer>> reduced = groups.getReducedNetwork();
+		recordGroups(groups);
+
+		Map<String, int[]> counts = getActivityEvidenceCounts(reduced, expProv);
+		stopReason = null;
+		PermutationCounts shard = permute(reduced, expProv, counts, iterations, null);
+		shard.inputs = PermutationCounts.getInputFingerprint(reduced, expProv);
+		return shard;
+	}
+
+	/**
+	 * Reports how many TFs share the signed targets of another TF, and so are not permuted separately.
+	 */
+	private void recordGroups(TargetSignatureGroups<Map<String, Integer>> groups)
+	{
+		System.out.println("TFs deduplicated by their signed targets = " + groups.getSavedCount());
+		if (metrics != null) metrics.record("signed.deduplicated", groups.getSavedCount());
+	}
+
+	/**
+	 * Gets the p-values of the TFs from the merged counts of all shards.
+	 */
+	public Map<String, double[]> getPValues(PermutationCounts merged)
+	{
+		TargetSignatureGroups<Map<String, Integer>> groups = new TargetSignatureGroups<>(network);
+		Map<String, Map<String, Integer>> reduced = groups.getReducedNetwork();
+
+		if (!new HashSet<>(Arrays.asList(merged.tfs)).equals(reduced.keySet()))
+		{
+			throw new IllegalArgumentException("Permutation counts are not for the TFs of this network");
+		}
+		if (merged.inputs != PermutationCounts.getInputFingerprint(reduced, expProv))
+		{
+			throw new IllegalArgumentException("Permutation counts are not for this network and expression");
+		}
+		return groups.expand(merged.getPValues());
+	}
+
+	/**
+	 * Writes the results for the given p-values at the FDR threshold. The given p-values can be for a subset of the
+	 * TFs.
+	 */
+	public void writeResults(String outFile, Map<String, double[]> pValues, double fdrThr) throws IOException
+	{
+		writeResults(outFile, pValues, getSupporterGenes(), fdrThr);
+	}
+
+	/**
+	 * Gets the targets of each TF that support its activity change. Independent of the p-values, so it can be
+	 * calculated in parallel.
+	 */
+	public Map<String, List<String>[]> getSupporterGenes()
+	{
+		return getActivitySupporterGenes(network, expProv);
+	}
+
+	/**
+	 * Gets the reported results of the last run.
+	 */
+	public List<ResultListToGraph.Row> getResults()
+	{
+		return results;
 	}
 
 	private Map<String, double[]> getActivityPValues(Map<String, Map<String, Integer>> network,
 		DiscreteExpressionProvider expProv, Map<String, int[]> actualCounts, int iterations)
+	{
+		stopReason = null;
+
+		// null statistics for the tail fit, the activation counts of the i-th TF followed by its inhibition counts
+		int[] nulls = null;
+		if (tailExtrapolation && shardCount == 1)
+		{
+			long perIteration = actualCounts.size() * 2L * Integer.BYTES;
+			if (maxMemory > 0 && perIteration * iterations > maxMemory)
+			{
+				iterations = (int) (maxMemory / perIteration);
+				stopReason = "memory budget";
+				System.out.println("Memory budget limits the iterations to " + iterations);
+			}
+
+			long size = actualCounts.size() * 2L * iterations;
+			if (size > MAX_ARRAY_SIZE)
+			{
+				iterations = (int) (MAX_ARRAY_SIZE / (actualCounts.size() * 2L));
+				stopReason = "memory budget";
+				System.out.println("Null statistics buffer limits the iterations to " + iterations);
+				size = actualCounts.size() * 2L * iterations;
+			}
+			nulls = new int[(int) size];
+		}
+
+		PermutationCounts counts = permute(network, expProv, actualCounts, iterations, nulls);
+		if (counts.done == 0) throw new IllegalStateException("No permutations finished, cannot report p-values");
+		if (nulls == null) return counts.getPValues();
+
+		Map<String, double[]> pvalMap = new HashMap<>();
+		for (int t = 0; t < counts.tfs.length; t++)
+		{
+			int[] act = actualCounts.get(counts.tfs[t]);
+			pvalMap.put(counts.tfs[t], new double[]{
+				GPDTail.getPValue(nulls, (2 * t) * iterations, counts.done, act[0]),
+				GPDTail.getPValue(nulls, (2 * t + 1) * iterations, counts.done, act[1])});
+		}
+		return pvalMap;
+	}
+
+	/**
+	 * Runs the permutations of the shard, counting the ones where the evidence of each TF reaches its actual evidence.
+	 * Stops early when the time budget runs out, keeping the counts of the finished permutations and recording the stop
+	 * reason. A cancelled or interrupted run also stops, writes the counts to the partial counts file, and then fails.
+	 *
+	 * @throws CancellationException if the run is cancelled or interrupted
+	 *
+	 * @param iterations number of permutations, or the upper limit when there is a time budget
+	 * @param nulls buffer to record the random evidence counts, or null
+	 */
+	private PermutationCounts permute(Map<String, Map<String, Integer>> network, DiscreteExpressionProvider expProv,
+		Map<String, int[]> actualCounts, int iterations, int[] nulls)
 	{
 		Set<String> genesToShuffle = network.values().stream().map(Map::keySet)
 			.flatMap(Collection::stream).collect(Collectors.toSet());
 
 		RandomizedExpressionProvider randProv = new RandomizedExpressionProvider(expProv, genesToShuffle);
 
-		Map<String, int[]> betterCnts = new HashMap<>();
-		for (String tf : actualCounts.keySet())
-		{
-			betterCnts.put(tf, new int[]{0, 0});
-		}
+		PermutationCounts counts = new PermutationCounts(actualCounts.keySet(), seed == null ? 0 : seed, iterations,
+			shardIndex, shardCount);
+		String[] tfs = counts.tfs;
 
-		Progress p = new Progress(iterations, "Calculating p-values");
-		for (int i = 0; i < iterations; i++)
+		long start = System.nanoTime();
+		int limit = counts.getPlanned();
+
+		// throughput estimates for the time budget
+		int nextEstimate = WARMUP_ITERATIONS;
+		long lastTime = start;
+		int lastDone = 0;
+
+		Progress p = new Progress(limit, "Calculating p-values");
+		for (int i = 0; i < iterations && counts.done < limit; i++)
 		{
-			randProv.shuffle();
+			if (!counts.isInShard(i)) continue;
+
+			if (Thread.currentThread().isInterrupted() || (cancelled != null && cancelled.getAsBoolean()))
+			{
+				stopReason = "cancelled";
+				break;
+			}
+
+			if (timeBudget > 0)
+			{
+				long now = System.nanoTime();
+				long elapsed = now - start;
+
+				if (elapsed >= timeBudget)
+				{
+					stopReason = "out of time";
+					break;
+				}
+
+				if (counts.done == nextEstimate)
+				{
+					double perIteration = (now - lastTime) / (double) (counts.done - lastDone);
+					long fit = counts.done + (long) ((timeBudget - elapsed) * TIME_BUDGET_MARGIN / perIteration);
+					int planned = (int) Math.min(limit, fit);
+
+					if (lastDone == 0) System.out.println("Time budget allows about " + planned + " permutations");
+					if (planned <= counts.done)
+					{
+						stopReason = "out of time";
+						break;
+					}
+
+					lastTime = now;
+					lastDone = counts.done;
+					nextEstimate = Math.max(counts.done + 1, Math.min(counts.done * 2, planned));
+				}
+			}
+
+			if (seed == null) randProv.shuffle();
+			else randProv.shuffle(PermutationCounts.getIterationSeed(seed, i));
 
 			Map<String, int[]> cnts = getActivityEvidenceCounts(network, randProv);
 
-			for (String tf : cnts.keySet())
+			for (int t = 0; t < tfs.length; t++)
 			{
-				int[] rand = cnts.get(tf);
-				int[] act = actualCounts.get(tf);
-				int[] bett = betterCnts.get(tf);
+				int[] rand = cnts.get(tfs[t]);
+				int[] act = actualCounts.get(tfs[t]);
 
-				if (rand[0] >= act[0]) bett[0]++;
-				if (rand[1] >= act[1]) bett[1]++;
+				if (rand[0] >= act[0]) counts.better[2 * t]++;
+				if (rand[1] >= act[1]) counts.better[2 * t + 1]++;
+
+				if (nulls != null)
+				{
+					nulls[(2 * t) * iterations + i] = rand[0];
+					nulls[(2 * t + 1) * iterations + i] = rand[1];
+				}
+
+				if (influence != null) influence.count(t, rand, randProv);
 			}
+			counts.done++;
 			p.tick();
 		}
 
-		Map<String, double[]> pvalMap = new HashMap<>();
-		for (String tf : betterCnts.keySet())
+		if (influence != null) influence.setCounts(counts);
+
+		if (stopReason != null) System.out.println("Permutations stopped (" + stopReason + ") after " + counts.done);
+		if (counts.done < counts.getPlanned())
 		{
-			pvalMap.put(tf, new double[]{
-				betterCnts.get(tf)[0] / (double) iterations, betterCnts.get(tf)[1] / (double) iterations});
+			System.out.println("Achieved p-value resolution = " + (counts.done == 0 ? 1 : 1D / counts.done));
 		}
 
-		return pvalMap;
+		if (metrics != null)
+		{
+			metrics.recordPermutations("signed", counts.done, System.nanoTime() - start);
+			metrics.record("signed.permutation.resolution", counts.done == 0 ? 1 : 1D / counts.done);
+			if (stopReason != null) metrics.record("signed.permutation.stopped", stopReason);
+		}
+
+		if ("cancelled".equals(stopReason)) throw cancel(counts, network, expProv);
+
+		return counts;
+	}
+
+	/**
+	 * Writes the counts of the cancelled permutations to the partial counts file, if there is one.
+	 *
+	 * @return the exception to fail the run with
+	 */
+	private CancellationException cancel(PermutationCounts counts, Map<String, Map<String, Integer>> network,
+		DiscreteExpressionProvider expProv)
+	{
+		CancellationException e = new CancellationException("Permutations cancelled after " + counts.done);
+		if (partialCountsFile == null) return e;
+
+		counts.inputs = PermutationCounts.getInputFingerprint(network, expProv);
+		try
+		{
+			counts.write(partialCountsFile);
+			System.out.println("Partial counts written to " + partialCountsFile);
+		}
+		catch (IOException ioe)
+		{
+			e.addSuppressed(ioe);
+		}
+		return e;
 	}
 
 	private Map<String, int[]> getActivityEvidenceCounts(Map<String, Map<String, Integer>> network, 
@@ -140,32 +542,36 @@ public class SignedAnalysis
 		return evidenceMap;
 	}
 
-	private void writeResults(String file, Map<String, Map<String, Integer>> network,
-		DiscreteExpressionProvider expProv, Map<String, double[]> pvals, double fdrThr) throws IOException
+	public void writeResults(String file, Map<String, double[]> pvals,
+		Map<String, List<String>[]> support, double fdrThr) throws IOException
 	{
-		Map<String, Double> pMap = new HashMap<>();
-		for (String tf : pvals.keySet())
+		// activation p-value of the i-th TF is at 2i, and inhibition p-value at 2i + 1
+		String[] tfs = pvals.keySet().stream().sorted().toArray(String[]::new);
+		double[] p = new double[tfs.length * 2];
+		for (int i = 0; i < tfs.length; i++)
 		{
-			pMap.put(tf + "-act", pvals.get(tf)[0]);
-			pMap.put(tf + "-inh", pvals.get(tf)[1]);
+			p[2 * i] = pvals.get(tfs[i])[0];
+			p[2 * i + 1] = pvals.get(tfs[i])[1];
 		}
 
-		Map<String, Double> qMap = FDR.getQVals(pMap, null);
+		PrimitiveFDR.Result fdr = PrimitiveFDR.control(p, null, fdrThr);
 
-		List<String> select = FDR.select(pMap, null, fdrThr);
-
-		Map<String, List<String>[]> support = getActivitySupporterGenes(network, expProv);
+		results = new ArrayList<>();
 
 		BufferedWriter writer = Files.newBufferedWriter(Paths.get(file));
 		writer.write("TF\tChange\tP-val\tQ-val\tSupporting targets");
 
-		for (String s : select)
+		for (int k : fdr.getSelectedInOrder())
 		{
-			String tf = s.substring(0, s.lastIndexOf("-"));
-			String change = s.substring(s.lastIndexOf("-") + 1).equals("act") ? "activated" : "inhibited";
+			String tf = tfs[k / 2];
+			int dir = k % 2 == 0 ? 1 : -1;
+
+			List<String> targets = support.get(tf)[dir == 1 ? 0 : 1];
+
+			writer.write("\n" + tf + "\t" + (dir == 1 ? "activated" : "inhibited") + "\t" + p[k] + "\t" +
+				fdr.getQVal(k) + "\t" + targets);
 
-			writer.write("\n" + tf + "\t" + change + "\t" + pMap.get(s) + "\t" + qMap.get(s) + "\t" +
-				support.get(tf)[change.startsWith("a") ? 0 : 1]);
+			results.add(new ResultListToGraph.Row(tf, p[k], dir, targets));
 		}
 
 		writer.close();
@@ -0,0 +1,225 @@
+package org.panda.tfactivity;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sparse expression matrix of single-cell data, kept in compressed sparse row (CSR) form where rows are genes and
+ * columns are cells. Only the non-zero entries are stored, as primitive arrays.
+ *
+ * Reads the 10x Genomics output format: a Matrix Market coordinate file (matrix.mtx) with genes as rows and cells as
+ * columns, the genes in features.tsv (or genes.tsv), and the cell barcodes in barcodes.tsv. Any of these files can be
+ * gzipped. Counts are normalized to the library size of the cell and log-transformed as log(1 + 10^4 * count / total).
+ *
+ * @author Ozgun Babur
+ */
+public class SparseExpressionMatrix
+{
+	/**
+	 * Total count that each cell is scaled to before log transformation.
+	 */
+	public static final double SCALE = 1E4;
+
+	String[] genes;
+	String[] cells;
+
+	/**
+	 * Row index of the genes. When a gene symbol repeats, the first row is used.
+	 */
+	Map<String, Integer> geneIndex;
+
+	/**
+	 * Start of the entries of each row in the column and value arrays. Row i spans rowPtr[i] to rowPtr[i + 1].
+	 */
+	int[] rowPtr;
+
+	/**
+	 * Column (cell) indices of the non-zero entries, ascending within a row.
+	 */
+	int[] colIdx;
+
+	/**
+	 * Normalized values of the non-zero entries.
+	 */
+	float[] values;
+
+	/**
+	 * Reads the matrix from a 10x output directory, or from the Matrix Market file inside one.
+	 */
+	public SparseExpressionMatrix(String path) throws IOException
+	{
+		Path dir = Paths.get(path);
+		Path mtx;
+
+		if (Files.isDirectory(dir))
+		{
+			mtx = find(dir, "matrix.mtx");
+		}
+		else
+		{
+			mtx = dir;
+			dir = dir.toAbsolutePath().getParent();
+		}
+
+		Path features = Files.exists(dir.resolve("features.tsv")) || Files.exists(dir.resolve("features.tsv.gz")) ?
+			find(dir, "features.tsv") : find(dir, "genes.tsv");
+
+		genes = readGenes(features);
+		cells = readLines(find(dir, "barcodes.tsv")).toArray(new String[0]);
+
+		geneIndex = new HashMap<>();
+		for (int i = 0; i < genes.length; i++)
+		{
+			geneIndex.putIfAbsent(genes[i], i);
+		}
+
+		readMatrix(mtx);
+	}
+
+	public String[] getCells()
+	{
+		return cells;
+	}
+
+	public Set<String> getCellSet()
+	{
+		return new HashSet<>(Arrays.asList(cells));
+	}
+
+	public String[] getGenes()
+	{
+		return genes;
+	}
+
+	/**
+	 * Gets the row of the gene, or -1 if the gene is not in the matrix.
+	 */
+	public int getGeneIndex(String gene)
+	{
+		Integer i = geneIndex.get(gene);
+		return i == null ? -1 : i;
+	}
+
+	public int getNonZeroCount()
+	{
+		return values.length;
+	}
+
+	/**
+	 * Rough memory size of the matrix, in bytes.
+	 */
+	public long getMemorySize()
+	{
+		return (long) values.length * 8 + (long) rowPtr.length * 4 + (genes.length + cells.length) * 64L;
+	}
+
+	/**
+	 * Reads the triplets, then places them into the CSR arrays with a counting sort over the rows.
+	 */
+	private void readMatrix(Path mtx) throws IOException
+	{
+		try (BufferedReader reader = open(mtx))
+		{
+			String line = reader.readLine();
+			if (line == null || !line.startsWith("%%MatrixMarket") || !line.contains("coordinate"))
+			{
+				throw new IOException("Not a Matrix Market coordinate file: " + mtx);
+			}
+			boolean pattern = line.contains("pattern");
+
+			while ((line = reader.readLine()) != null && line.startsWith("%"));
+			if (line == null) throw new IOException("Missing size line in " + mtx);
+
+			String[] t = line.trim().split("\\s+");
+			int rows = Integer.parseInt(t[0]);
+			int cols = Integer.parseInt(t[1]);
+			int nnz = Integer.parseInt(t[2]);
+
+			if (rows != genes.length || cols != cells.length)
+			{
+				throw new IOException("Matrix size " + rows + "x" + cols + " does not match " + genes.length +
+					" genes and " + cells.length + " cells");
+			}
+
+			int[] r = new int[nnz];
+			int[] c = new int[nnz];
+			float[] v = new float[nnz];
+			double[] libSize = new double[cols];
+			int[] rowCount = new int[rows];
+
+			for (int k = 0; k < nnz; k++)
+			{
+				line = reader.readLine();
+				if (line == null) throw new IOException("Expected " + nnz + " entries, found " + k + " in " + mtx);
+
+				String[] f = line.trim().split("\\s+");
+				r[k] = Integer.parseInt(f[0]) - 1;
+				c[k] = Integer.parseInt(f[1]) - 1;
+				v[k] = pattern ? 1 : Float.parseFloat(f[2]);
+
+				libSize[c[k]] += v[k];
+				rowCount[r[k]]++;
+			}
+
+			rowPtr = new int[rows + 1];
+			for (int i = 0; i < rows; i++)
+			{
+				rowPtr[i + 1] = rowPtr[i] + rowCount[i];
+			}
+
+			colIdx = new int[nnz];
+			values = new float[nnz];
+			int[] next = Arrays.copyOf(rowPtr, rows);
+
+			// 10x files are sorted by column, so the columns come out ascending within each row
+			for (int k = 0; k < nnz; k++)
+			{
+				int pos = next[r[k]]++;
+				colIdx[pos] = c[k];
+				values[pos] = (float) Math.log1p(v[k] * SCALE / libSize[c[k]]);
+			}
+		}
+	}
+
+	private static String[] readGenes(Path features) throws IOException
+	{
+		// use the symbol column when there is one, otherwise the ID
+		return readLines(features).stream().map(l -> l.split("\t")).map(t -> t.length > 1 ? t[1] : t[0])
+			.toArray(String[]::new);
+	}
+
+	private static List<String> readLines(Path file) throws IOException
+	{
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader reader = open(file))
+		{
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+			{
+				if (!line.isEmpty()) lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Finds the file with the given name in the directory, plain or gzipped.
+	 */
+	private static Path find(Path dir, String name) throws FileNotFoundException
+	{
+		if (Files.exists(dir.resolve(name))) return dir.resolve(name);
+		if (Files.exists(dir.resolve(name + ".gz"))) return dir.resolve(name + ".gz");
+		throw new FileNotFoundException(name + " not found in " + dir);
+	}
+
+	private static BufferedReader open(Path file) throws IOException
+	{
+		InputStream in = Files.newInputStream(file);
+		if (file.toString().endsWith(".gz")) in = new GZIPInputStream(in, 1 << 16);
+		return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+	}
+}
@@ -0,0 +1,131 @@
+package org.panda.tfactivity;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Expression provider for single-cell data in a sparse matrix. Differential expression between the two groups of cells
+ * is tested with Welch's t-test. The group means and variances are calculated from the sums over the non-zero entries
+ * only, in a single pass over the matrix when the groups are set, since the zero entries add nothing to the sums.
+ *
+ * @author Ozgun Babur
+ */
+public class SparseExpressionProvider implements DiscreteExpressionProvider
+{
+	SparseExpressionMatrix matrix;
+	TwoGroupsSampleNames two;
+	double pvalThr;
+
+	/**
+	 * Differential expression p-values of the genes, in the row order of the matrix. NaN if the gene cannot be tested.
+	 */
+	double[] pvals;
+
+	/**
+	 * Direction of the change of the genes, in the row order of the matrix.
+	 */
+	byte[] directions;
+
+	public SparseExpressionProvider(String path) throws IOException
+	{
+		this(new SparseExpressionMatrix(path));
+	}
+
+	/**
+	 * Constructor for an already loaded matrix, which can be shared by multiple providers.
+	 */
+	public SparseExpressionProvider(SparseExpressionMatrix matrix)
+	{
+		this.matrix = matrix;
+	}
+
+	public SparseExpressionMatrix getMatrix()
+	{
+		return matrix;
+	}
+
+	public void setTwo(TwoGroupsSampleNames two)
+	{
+		this.two = two;
+		calculateStats();
+	}
+
+	public void setPvalThr(double pvalThr)
+	{
+		this.pvalThr = pvalThr;
+	}
+
+	public void setFDRThr(double thr)
+	{
+		double[] valid = Arrays.stream(pvals).filter(p -> !Double.isNaN(p)).toArray();
+		setPvalThr(PrimitiveFDR.getPValueThreshold(valid, null, thr));
+		System.out.println("pval thr matching given fdr = " + pvalThr);
+	}
+
+	@Override
+	public BitSet getAvailableGenes(String[] genes)
+	{
+		BitSet available = new BitSet(genes.length);
+		for (int i = 0; i < genes.length; i++)
+		{
+			if (matrix.getGeneIndex(genes[i]) >= 0) available.set(i);
+		}
+		return available;
+	}
+
+	@Override
+	public Integer getChange(String gene)
+	{
+		// genes that are not in the matrix count as unchanged, as in the other providers
+		int i = matrix.getGeneIndex(gene);
+		if (i < 0) return 0;
+
+		double p = pvals[i];
+		if (Double.isNaN(p) || p > pvalThr) return 0;
+		return (int) directions[i];
+	}
+
+	/**
+	 * Sums the values and the squares of the values of each gene in each group, visiting only the non-zero entries,
+	 * and tests the difference of the means.
+	 */
+	private void calculateStats()
+	{
+		// group of each cell: 0 for none, 1 for control, 2 for test
+		two.resolve(matrix.cells);
+		byte[] group = new byte[matrix.cells.length];
+		for (int c : two.getControlIndices()) group[c] = 1;
+		for (int c : two.getTestIndices()) group[c] = 2;
+
+		int n1 = two.getControlIndices().length;
+		int n2 = two.getTestIndices().length;
+
+		int rows = matrix.genes.length;
+		pvals = new double[rows];
+		directions = new byte[rows];
+
+		for (int i = 0; i < rows; i++)
+		{
+			double s1 = 0, ss1 = 0, s2 = 0, ss2 = 0;
+
+			for (int k = matrix.rowPtr[i]; k < matrix.rowPtr[i + 1]; k++)
+			{
+				double v = matrix.values[k];
+				switch (group[matrix.colIdx[k]])
+				{
+					case 1: s1 += v; ss1 += v * v; break;
+					case 2: s2 += v; ss2 += v * v; break;
+				}
+			}
+
+			double m1 = s1 / n1;
+			double m2 = s2 / n2;
+			double v1 = (ss1 - n1 * m1 * m1) / (n1 - 1);
+			double v2 = (ss2 - n2 * m2 * m2) / (n2 - 1);
+
+			pvals[i] = WelchTTest.getPValue(m1, v1, n1, m2, v2, n2);
+			directions[i] = (byte) (Double.isNaN(pvals[i]) ? 0 : m2 > m1 ? 1 : -1);
+		}
+	}
+}
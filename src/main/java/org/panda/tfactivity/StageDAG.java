@@ -0,0 +1,232 @@
+package org.panda.tfactivity;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the stages of a pipeline as a small DAG of futures. A stage starts as soon as the stages it depends on are
+ * finished, so independent stages run concurrently. Start and end times of the stages are recorded to report the
+ * timings and the critical path.
+ *
+ * @author Ozgun Babur
+ */
+public class StageDAG
+{
+	/**
+	 * Start time of the DAG, in nanoseconds.
+	 */
+	long t0;
+
+	ExecutorService executor;
+
+	/**
+	 * Recorded stages, in order of completion.
+	 */
+	List<Stage> stages;
+
+	/**
+	 * Stages of the futures, to resolve dependencies.
+	 */
+	Map<CompletableFuture<?>, Stage> futureToStage;
+
+	/**
+	 * Metrics to measure the stages with. Can be null.
+	 */
+	RunMetrics metrics;
+
+	/**
+	 * Set when the thread that waits for the DAG is interrupted. Stages that can stop early check it and finish with
+	 * partial results, so that the following stages still run.
+	 */
+	volatile boolean cancelled;
+
+	public StageDAG()
+	{
+		this(null);
+	}
+
+	public StageDAG(RunMetrics metrics)
+	{
+		this.metrics = metrics;
+		t0 = System.nanoTime();
+		executor = Executors.newCachedThreadPool(r ->
+		{
+			Thread thread = new Thread(r);
+			thread.setDaemon(true);
+			return thread;
+		});
+		stages = Collections.synchronizedList(new ArrayList<>());
+		futureToStage = Collections.synchronizedMap(new HashMap<>());
+	}
+
+	/**
+	 * Adds a stage that runs after the given stages finish. The task can get the results of its dependencies with
+	 * join, without waiting.
+	 *
+	 * @param name name of the stage for the report
+	 * @param task the job of the stage
+	 * @param dependencies futures of the stages that need to finish first
+	 * @return future of the stage
+	 */
+	public <T> CompletableFuture<T> stage(String name, StageTask<T> task, CompletableFuture<?>... dependencies)
+	{
+		Stage stage = new Stage(name);
+		for (CompletableFuture<?> dep : dependencies)
+		{
+			stage.dependencies.add(futureToStage.get(dep));
+		}
+
+		CompletableFuture<T> future = CompletableFuture.allOf(dependencies).thenApplyAsync(v ->
+		{
+			stage.start = System.nanoTime() - t0;
+			try
+			{
+				return metrics == null ? task.run() : metrics.measure(name, task);
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			finally
+			{
+				stage.end = System.nanoTime() - t0;
+				stages.add(stage);
+			}
+		}, executor);
+
+		futureToStage.put(future, stage);
+		return future;
+	}
+
+	public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Waits for the given stage, rethrowing its exception if it failed. If the waiting thread is interrupted, the DAG is
+	 * marked cancelled and the waiting continues until the stages wrap up, then the run fails with a cancellation. The
+	 * interrupt status is restored afterwards.
+	 *
+	 * @return result of the stage
+	 * @throws CancellationException if the DAG is cancelled
+	 */
+	public <T> T await(CompletableFuture<T> future) throws IOException
+	{
+		boolean interrupted = false;
+		try
+		{
+			while (true)
+			{
+				try
+				{
+					T result = future.get();
+					if (cancelled) throw new CancellationException("Run is cancelled");
+					return result;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+					cancelled = true;
+				}
+			}
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cancelled && !(cause instanceof CancellationException))
+			{
+				CancellationException ce = new CancellationException("Run is cancelled");
+				ce.initCause(cause);
+				throw ce;
+			}
+			if (cause instanceof UncheckedIOException) throw ((UncheckedIOException) cause).getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new CompletionException(cause);
+		}
+		finally
+		{
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for the given final stage, and shuts down the threads.
+	 *
+	 * @return result of the stage
+	 */
+	public <T> T finish(CompletableFuture<T> last) throws IOException
+	{
+		try
+		{
+			return await(last);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Prints the start, end and duration of each stage, and the chain of stages that determined the end time of the
+	 * given final stage.
+	 */
+	public void report(CompletableFuture<?> last)
+	{
+		System.out.println("Stage timings (ms):");
+		List<Stage> list;
+		synchronized (stages)
+		{
+			list = new ArrayList<>(stages);
+		}
+		list.sort(Comparator.comparingLong(s -> s.start));
+
+		for (Stage stage : list)
+		{
+			System.out.println("  " + stage.name + "\tstart = " + ms(stage.start) + "\tend = " + ms(stage.end) +
+				"\tduration = " + ms(stage.end - stage.start));
+		}
+
+		// walk back from the final stage, following the dependency that finished last
+		LinkedList<String> path = new LinkedList<>();
+		Stage stage = futureToStage.get(last);
+		while (stage != null)
+		{
+			path.addFirst(stage.name);
+			stage = stage.dependencies.stream().filter(Objects::nonNull).max(Comparator.comparingLong(s -> s.end))
+				.orElse(null);
+		}
+		System.out.println("Critical path: " + String.join(" -> ", path));
+	}
+
+	private static long ms(long nanos)
+	{
+		return nanos / 1000000;
+	}
+
+	public interface StageTask<T>
+	{
+		T run() throws IOException;
+	}
+
+	static class Stage
+	{
+		String name;
+		long start;
+		long end;
+		List<Stage> dependencies = new ArrayList<>();
+
+		Stage(String name)
+		{
+			this.name = name;
+		}
+	}
+}
@@ -1,13 +1,15 @@
 package org.panda.tfactivity;
 
 import org.panda.resource.tcga.ExpressionReader;
-import org.panda.utility.statistics.FDR;
 import org.panda.utility.statistics.Summary;
 import org.panda.utility.statistics.TTest;
 
 import java.io.FileNotFoundException;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * @author Ozgun Babur
@@ -20,10 +22,31 @@ public class TCGAExpressionProvider implements DiscreteExpressionProvider
 
 	Map<String, Integer> cache;
 
+	/**
+	 * Hit and miss counts of the cache, for the run metrics.
+	 */
+	LongAdder cacheHits = new LongAdder();
+	LongAdder cacheMisses = new LongAdder();
+
+	/**
+	 * Differential expression p-value and direction of genes, for the current groups. These do not depend on the
+	 * thresholds, hence they are kept when the threshold changes. A null p-value indicates that there is no data.
+	 */
+	Map<String, Stat> statCache = new ConcurrentHashMap<>();
+
 	public TCGAExpressionProvider(String file) throws FileNotFoundException
 	{
 		er = new ExpressionReader(file);
-		cache = new HashMap<>();
+		cache = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Constructor for an already loaded expression matrix, which can be shared by multiple providers.
+	 */
+	public TCGAExpressionProvider(ExpressionReader er)
+	{
+		this.er = er;
+		cache = new ConcurrentHashMap<>();
 	}
 
 	/**
@@ -37,6 +60,7 @@ public class TCGAExpressionProvider implements DiscreteExpressionProvider
 	{
 		this.two = two;
 		cache.clear();
+		statCache.clear();
 	}
 
 	public void setPvalThr(double pvalThr)
@@ -50,60 +74,104 @@ public class TCGAExpressionProvider implements DiscreteExpressionProvider
 		setPvalThr(getPvalThrForGivenFDR(thr));
 	}
 
+	/**
+	 * Checks the presence of the genes in the expression matrix, without calculating their change.
+	 */
+	@Override
+	public BitSet getAvailableGenes(String[] genes)
+	{
+		Set<String> inMatrix = er.getGenes();
+		BitSet available = new BitSet(genes.length);
+		for (int i = 0; i < genes.length; i++)
+		{
+			if (inMatrix.contains(genes[i])) available.set(i);
+		}
+		return available;
+	}
+
 	@Override
 	public Integer getChange(String gene)
 	{
-		if (!cache.containsKey(gene))
+		Integer change = cache.get(gene);
+		if (change == null)
 		{
-			Integer change = calcChange(gene);
+			cacheMisses.increment();
+			change = calcChange(gene);
 			cache.put(gene, change);
 		}
-		return cache.get(gene);
+		else cacheHits.increment();
+
+		return change;
+	}
+
+	/**
+	 * Records the hit rate of the change cache to the given metrics.
+	 */
+	public void recordCacheMetrics(RunMetrics metrics)
+	{
+		metrics.recordCache("expression.cache", cacheHits.sum(), cacheMisses.sum());
 	}
 
 	private Integer calcChange(String gene)
 	{
-		double[] ctrl = er.getGeneAlterationArray(gene, two.getControl());
-		double[] test = er.getGeneAlterationArray(gene, two.getTest());
-		Double pval = getPval(ctrl, test);
+		Stat stat = getStat(gene);
 
-		if (pval == null || pval > pvalThr) return 0;
+		if (stat.pval == null || stat.pval > pvalThr) return 0;
 
-		if (Summary.mean(test) > Summary.mean(ctrl)) return 1;
-		return -1;
+		return stat.direction;
 	}
 
 	private Double getPval(String gene)
 	{
-		double[] ctrl = er.getGeneAlterationArray(gene, two.getControl());
-		double[] test = er.getGeneAlterationArray(gene, two.getTest());
-
-		return getPval(ctrl, test);
+		return getStat(gene).pval;
 	}
 
-	private Double getPval(double[] ctrl, double[] test)
+	/**
+	 * Gets the p-value and the direction of the change of the gene, calculating once per groups setting.
+	 */
+	Stat getStat(String gene)
 	{
-		if (ctrl == null || test == null) return null;
+		Stat stat = statCache.get(gene);
 
+		if (stat == null)
+		{
+			double[] ctrl = er.getGeneAlterationArray(gene, two.getControl());
+			double[] test = er.getGeneAlterationArray(gene, two.getTest());
+			stat = ctrl == null || test == null ? new Stat(null, 0) : test(ctrl, test);
+			statCache.put(gene, stat);
+		}
+		return stat;
+	}
+
+	/**
+	 * Tests the difference of the groups with the t-test.
+	 */
+	private Stat test(double[] ctrl, double[] test)
+	{
 		double pval = TTest.getPValOfMeanDifference(ctrl, test);
-		if (Double.isNaN(pval)) return null;
-		return pval;
+		if (Double.isNaN(pval)) return new Stat(null, 0);
+		return new Stat(pval, Summary.mean(test) > Summary.mean(ctrl) ? 1 : -1);
 	}
 
 	private double getPvalThrForGivenFDR(double fdr)
 	{
-		Map<String, Double> map = new HashMap<>();
-		for (String gene : er.getGenes())
-		{
-			Double p = getPval(gene);
-			if (p != null && !p.isNaN())
-			{
-				map.put(gene, p);
-			}
-		}
+		double[] pvals = er.getGenes().stream().map(this::getPval).filter(p -> p != null && !p.isNaN())
+			.mapToDouble(Double::doubleValue).toArray();
 
-		double thr = FDR.getPValueThreshold(map, null, fdr);
+		double thr = PrimitiveFDR.getPValueThreshold(pvals, null, fdr);
 		System.out.println("pval thr matching given fdr = " + thr);
 		return thr;
 	}
+
+	class Stat
+	{
+		Double pval;
+		int direction;
+
+		Stat(Double pval, int direction)
+		{
+			this.pval = pval;
+			this.direction = direction;
+		}
+	}
 }
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * @author Ozgun Babur
@@ -14,222 +15,209 @@ public class TFExpToActMapper
 {
 	Map<String, Map<String, Integer>> signedMap;
 	Map<String, Map<String, double[]>> expsMap;
-	Map<String, Map<String, double[]>> ranksMap;
-	Map<String, Map<String, double[]>> ranksRevMap;
+
+	/**
+	 * Forward ranks of the genes in studies, keyed by study and gene. Bounded in size, evicting the least recently used.
+	 */
+	Map<String, double[]> ranksCache;
+
+	/**
+	 * Default maximum number of rank arrays to keep in memory.
+	 */
+	public static final int DEFAULT_RANKS_CACHE_SIZE = 20000;
 
 	String outDir;
 
+	/**
+	 * Name of the file that contains all curves of a run, overwritten by each run. Each line is one point of a curve,
+	 * in columns of the factor, the study, the factor rank and the target expression. Lines are sorted by the factor
+	 * and the study, and the points of a curve are consecutive.
+	 */
+	public static final String CURVES_FILENAME = "activity-curves.txt";
+
+	/**
+	 * Number of factor and study combinations to calculate in parallel before writing their curves in order.
+	 */
+	static final int BATCH_SIZE = 1000;
+
 	public TFExpToActMapper(Map<String, Map<String, Integer>> signedMap, Map<String, Map<String, double[]>> expsMap,
 		String outDir)
+	{
+		this(signedMap, expsMap, outDir, DEFAULT_RANKS_CACHE_SIZE);
+	}
+
+	public TFExpToActMapper(Map<String, Map<String, Integer>> signedMap, Map<String, Map<String, double[]>> expsMap,
+		String outDir, int ranksCacheSize)
 	{
 		this.signedMap = signedMap;
 		this.expsMap = expsMap;
 		this.outDir = outDir;
-		ranksMap = new HashMap<>();
-		ranksRevMap = new HashMap<>();
+		ranksCache = Collections.synchronizedMap(new LinkedHashMap<String, double[]>(16, 0.75f, true)
+		{
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest)
+			{
+				return size() > ranksCacheSize;
+			}
+		});
 	}
 
 	public void run() throws IOException
 	{
-		for (String factor : signedMap.keySet())
+		// each factor and study combination is independent of the others, sorted for the order of the output
+		List<String[]> jobs = new ArrayList<>();
+		for (String factor : new TreeSet<>(signedMap.keySet()))
 		{
-			Map<String, Integer> fMap = signedMap.get(factor);
-
-			if (fMap.size() > 5)
+			if (signedMap.get(factor).size() > 5)
 			{
-				for (String study : expsMap.keySet())
+				for (String study : new TreeSet<>(expsMap.keySet()))
 				{
-					double[] fR = getRanks(study, factor, true);
-
-					if (fR == null || fR.length < 10) continue;
-
-					double[] ac = new double[fR.length];
-
-					for (int i = 0; i < fR.length; i++)
-					{
-						double sum = 0;
-						double cnt = 0;
-
-						for (String target : fMap.keySet())
-						{
-							boolean sign = fMap.get(target) == 1;
-							double[] tR = getRanks(study, target, sign);
-							if (tR != null && !Double.isNaN(tR[i]))
-							{
-								sum += tR[i];
-								cnt++;
-							}
-						}
-
-						ac[i] = sum / cnt;
-					}
-
-					double[][] arr = applySlidingWindow(fR, ac, 0.1);
-					write(study, factor, arr[0], arr[1]);
+					jobs.add(new String[]{factor, study});
 				}
 			}
 		}
-	}
 
-	void write(String study, String factor, double[] fRank, double[] fAc) throws IOException
-	{
-		File dir = new File(outDir + "/" + factor);
-		dir.mkdirs();
+		Files.createDirectories(Paths.get(outDir));
+		BufferedWriter writer = Files.newBufferedWriter(Paths.get(outDir + File.separator + CURVES_FILENAME));
+		writer.write("Factor\tStudy\tFactor rank\tTarget expression");
 
-		BufferedWriter writer = Files.newBufferedWriter(Paths.get(dir.getPath() + "/" + study + ".txt"));
-		writer.write(study + "\t" + factor + "\nFactor rank\tTarget expression");
-
-		for (int i = 0; i < fRank.length; i++)
+		// curves of a batch are calculated in parallel, and written in the order of the jobs
+		for (int from = 0; from < jobs.size(); from += BATCH_SIZE)
 		{
-			writer.write("\n" + fRank[i] + "\t" + fAc[i]);
+			List<String> curves = jobs.subList(from, Math.min(from + BATCH_SIZE, jobs.size())).parallelStream()
+				.map(job -> getCurve(job[0], job[1])).collect(Collectors.toList());
+
+			for (String curve : curves)
+			{
+				if (curve != null) writer.write(curve);
+			}
 		}
 
 		writer.close();
 	}
 
-	double[] getRanks(String study, String gene, boolean forward)
+	/**
+	 * Gets the lines of the activity curve of the factor in the study.
+	 *
+	 * @return the lines, or null if the factor has too few samples in the study
+	 */
+	String getCurve(String factor, String study)
 	{
-		if (forward && !ranksMap.containsKey(study)) ranksMap.put(study, new HashMap<>());
-		if (!forward && !ranksRevMap.containsKey(study)) ranksRevMap.put(study, new HashMap<>());
+		double[] fR = getRanks(study, factor, true);
 
-		if (forward && !ranksMap.get(study).containsKey(gene) ||
-			!forward && !ranksRevMap.get(study).containsKey(gene))
-		{
-			double[] exp = expsMap.get(study).get(gene);
+		if (fR == null || fR.length < 10) return null;
 
-			if (exp != null)
-			{
+		double[] ac = getAverageTargetRanks(study, signedMap.get(factor), fR.length);
 
-				Map<String, Map<String, double[]>> map = forward ? ranksMap : ranksRevMap;
-				map.get(study).put(gene, getRanks(exp, forward));
-			}
-		}
+		double[][] arr = applySlidingWindow(fR, ac, 0.1);
 
-		return forward ? ranksMap.get(study).get(gene) : ranksRevMap.get(study).get(gene);
+		return format(study, factor, arr[0], arr[1]);
 	}
 
-	double[] getRanks(double[] vals, boolean forward)
+	/**
+	 * Averages the non-NaN ranks of the targets in each sample, adding the rank vector of each target in a sweep over
+	 * the samples. Targets of negative edges contribute their reverse ranks.
+	 *
+	 * @param study the study
+	 * @param fMap targets of the factor with edge signs
+	 * @param size number of samples
+	 * @return average target rank in each sample
+	 */
+	double[] getAverageTargetRanks(String study, Map<String, Integer> fMap, int size)
 	{
-		List<Node> nodes = new ArrayList<>(vals.length);
-		for (int i = 0; i < vals.length; i++)
-		{
-			nodes.add(new Node(vals[i], i, forward));
-		}
+		double[] sum = new double[size];
+		int[] cnt = new int[size];
 
-		Collections.sort(nodes);
-
-		for (int i = 0; i < nodes.size(); i++)
+		for (String target : fMap.keySet())
 		{
-			Node node = nodes.get(i);
+			double[] tR = getRanks(study, target, fMap.get(target) == 1);
+			if (tR == null) continue;
 
-			if (node.val.isNaN())
+			for (int i = 0; i < size; i++)
 			{
-				node.rank = Double.NaN;
-			}
-			else if (i == 0)
-			{
-				node.rank = i;
-			}
-			else
-			{
-				Node prev = nodes.get(i - 1);
-
-				if (prev.val.equals(node.val)) node.rank = prev.rank;
-				else node.rank = i;
+				double v = tR[i];
+				if (!Double.isNaN(v))
+				{
+					sum[i] += v;
+					cnt[i]++;
+				}
 			}
 		}
 
-		double[] r = new double[vals.length];
-
-		for (Node node : nodes)
+		for (int i = 0; i < size; i++)
 		{
-			r[node.index] = node.rank;
+			sum[i] /= cnt[i];
 		}
 
-		return r;
+		return sum;
 	}
 
-	double[][] applySlidingWindow(double[] fR, double[] fA, double winRatio)
+	/**
+	 * Formats the points of a curve as lines of the curves file, each starting with a line break.
+	 */
+	String format(String study, String factor, double[] fRank, double[] fAc)
 	{
-		// sort arrays using fA
-
-		List<Tuple> list = new ArrayList<>();
-		for (int i = 0; i < fR.length; i++)
-		{
-			list.add(new Tuple(fR[i], fA[i]));
-		}
-		Collections.sort(list);
-		fR = new double[fR.length];
-		fA = new double[fA.length];
-		for (int i = 0; i < fR.length; i++)
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < fRank.length; i++)
 		{
-			fR[i] = list.get(i).v1;
-			fA[i] = list.get(i).v2;
+			sb.append("\n").append(factor).append("\t").append(study).append("\t").append(fRank[i]).append("\t")
+				.append(fAc[i]);
 		}
+		return sb.toString();
+	}
 
-		int window = (int) (fR.length * winRatio);
-
-		double[] fRW = new double[fR.length - window + 1];
-		double[] fAW = new double[fRW.length];
+	double[] getRanks(String study, String gene, boolean forward)
+	{
+		String key = study + "\t" + gene;
+		double[] ranks = ranksCache.get(key);
 
-		for (int i = 0; i < fRW.length; i++)
+		if (ranks == null)
 		{
-			fRW[i] = fR[i + window - 1];
-
-			for (int j = i; j < i + window; j++)
-			{
-				fAW[i] += fA[j];
-			}
-		}
+			double[] exp = expsMap.get(study).get(gene);
+			if (exp == null) return null;
 
-		for (int i = 0; i < fRW.length; i++)
-		{
-			fAW[i] /= window;
+			// ranking is done outside the lock, a rare duplicate computation is harmless
+			ranks = RankUtil.getRanks(exp);
+			ranksCache.put(key, ranks);
 		}
 
-		return new double[][]{fRW, fAW};
+		return forward ? ranks : RankUtil.getReverseRanks(ranks);
 	}
 
-	class Tuple implements Comparable
+	/**
+	 * Sorts the activity values by factor ranks and averages them in a sliding window. Window sums are differences of
+	 * a prefix sum array, hence linear in the array size regardless of the window size. NaN values, which are samples
+	 * where no target has data, are left out of the prefix sums and the window averages, so they affect no window.
+	 */
+	double[][] applySlidingWindow(double[] fR, double[] fA, double winRatio)
 	{
-		Double v1;
-		Double v2;
+		// sort arrays using fR
 
-		public Tuple(Double v1, Double v2)
-		{
-			this.v1 = v1;
-			this.v2 = v2;
-		}
+		int[] order = RankUtil.sortIndices(fR);
+
+		int window = (int) (fR.length * winRatio);
 
-		@Override
-		public int compareTo(Object o)
+		// sums and counts of the non-NaN values
+		double[] prefix = new double[fA.length + 1];
+		int[] prefixCnt = new int[fA.length + 1];
+		for (int i = 0; i < order.length; i++)
 		{
-			return v1.compareTo(((Tuple) o).v1);
+			double v = fA[order[i]];
+			boolean valid = !Double.isNaN(v);
+			prefix[i + 1] = prefix[i] + (valid ? v : 0);
+			prefixCnt[i + 1] = prefixCnt[i] + (valid ? 1 : 0);
 		}
-	}
 
-	class Node implements Comparable
-	{
-		Double val;
-		int index;
-		double rank;
-		boolean forward;
+		double[] fRW = new double[fR.length - window + 1];
+		double[] fAW = new double[fRW.length];
 
-		public Node(double val, int index, boolean forward)
+		for (int i = 0; i < fRW.length; i++)
 		{
-			this.val = val;
-			this.index = index;
-			this.forward = forward;
+			fRW[i] = fR[order[i + window - 1]];
+			int cnt = prefixCnt[i + window] - prefixCnt[i];
+			fAW[i] = cnt == 0 ? Double.NaN : (prefix[i + window] - prefix[i]) / cnt;
 		}
 
-		@Override
-		public int compareTo(Object o)
-		{
-			if (forward) return val.compareTo(((Node) o).val);
-
-			if (val.isNaN() && !((Node) o).val.isNaN()) return -1;
-			if (!val.isNaN() && ((Node) o).val.isNaN()) return 1;
-			return ((Node) o).val.compareTo(val);
-		}
+		return new double[][]{fRW, fAW};
 	}
 }
@@ -0,0 +1,177 @@
+package org.panda.tfactivity;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Leave-one-target-out influence of the supporting targets on the activity calls of the TFs, derived from the same
+ * permutations as the p-values instead of a separate run per removed target.
+ *
+ * Removing a supporting target lowers the actual evidence of its direction by one. A permutation reaches the lowered
+ * evidence without that target if it reached the full evidence, or if it was one short of the full evidence and the
+ * target does not support the direction in that permutation. So the leave-one-out exceedance count of a target is the
+ * exceedance count of the TF plus the number of these near-miss permutations where the target does not support, which
+ * is the only thing counted per target. The permuted gene pool is kept as is, so when the removed target is not a
+ * target of any other TF, the counts approximate, rather than reproduce, a run on the network without that edge.
+ *
+ * The leave-one-out p-values are empirical, so they are not comparable to tail extrapolated p-values.
+ *
+ * @author Ozgun Babur
+ */
+public class TargetInfluence
+{
+	/**
+	 * The default name of the influence file.
+	 */
+	public static final String FILENAME = "TF-target-influence.txt";
+
+	/**
+	 * TFs that represent their target signature groups, in ascending order, same as the permutation counts.
+	 */
+	String[] tfs;
+	Map<String, Integer> tfIndex;
+
+	/**
+	 * Maps each TF to the TF that represents its target signature group.
+	 */
+	Map<String, String> representatives;
+
+	/**
+	 * Actual activation and inhibition evidence of the i-th TF, at 2i and 2i + 1.
+	 */
+	int[] actual;
+
+	/**
+	 * Supporting targets of each TF direction, at the same positions as the evidence, and the signs of their edges.
+	 */
+	String[][] supporters;
+	int[][] signs;
+
+	/**
+	 * Number of the near-miss permutations of each TF direction where the supporting target does not support.
+	 */
+	int[][] exceed;
+
+	/**
+	 * Exceedance counts of the same permutations.
+	 */
+	PermutationCounts counts;
+
+	/**
+	 * @param network the reduced network that is permuted
+	 * @param actualCounts actual evidence of the TFs
+	 * @param expProv the actual expression
+	 * @param representatives maps each TF to its representative in the reduced network
+	 */
+	public TargetInfluence(Map<String, Map<String, Integer>> network, Map<String, int[]> actualCounts,
+		DiscreteExpressionProvider expProv, Map<String, String> representatives)
+	{
+		this.representatives = representatives;
+		tfs = actualCounts.keySet().stream().sorted().toArray(String[]::new);
+		tfIndex = new HashMap<>();
+		actual = new int[tfs.length * 2];
+		supporters = new String[tfs.length * 2][];
+		signs = new int[tfs.length * 2][];
+		exceed = new int[tfs.length * 2][];
+
+		for (int t = 0; t < tfs.length; t++)
+		{
+			tfIndex.put(tfs[t], t);
+			actual[2 * t] = actualCounts.get(tfs[t])[0];
+			actual[2 * t + 1] = actualCounts.get(tfs[t])[1];
+
+			Map<String, Integer> edges = network.get(tfs[t]);
+			List<String>[] lists = new List[]{new ArrayList<String>(), new ArrayList<String>()};
+
+			for (String target : new TreeSet<>(edges.keySet()))
+			{
+				int change = expProv.getChange(target);
+				if (change != 0) lists[edges.get(target) * change > 0 ? 0 : 1].add(target);
+			}
+
+			for (int d = 0; d < 2; d++)
+			{
+				int k = 2 * t + d;
+				supporters[k] = lists[d].toArray(new String[lists[d].size()]);
+				signs[k] = new int[supporters[k].length];
+				exceed[k] = new int[supporters[k].length];
+				for (int j = 0; j < supporters[k].length; j++)
+				{
+					signs[k][j] = edges.get(supporters[k][j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the near-miss directions of the TF in a permutation.
+	 *
+	 * @param t index of the TF
+	 * @param rand random activation and inhibition evidence of the TF
+	 * @param randProv the permuted expression
+	 */
+	public void count(int t, int[] rand, DiscreteExpressionProvider randProv)
+	{
+		for (int d = 0; d < 2; d++)
+		{
+			int k = 2 * t + d;
+			if (rand[d] != actual[k] - 1) continue;
+
+			for (int j = 0; j < supporters[k].length; j++)
+			{
+				int change = randProv.getChange(supporters[k][j]);
+				if (change == 0 || (signs[k][j] * change > 0) != (d == 0)) exceed[k][j]++;
+			}
+		}
+	}
+
+	public void setCounts(PermutationCounts counts)
+	{
+		if (!Arrays.equals(counts.tfs, tfs))
+		{
+			throw new IllegalArgumentException("Permutation counts are not for the same TFs");
+		}
+		this.counts = counts;
+	}
+
+	/**
+	 * Gets the empirical p-value of the TF direction when the j-th supporting target is left out.
+	 */
+	double getPValue(int k, int j)
+	{
+		return (counts.better[k] + exceed[k][j]) / (double) counts.done;
+	}
+
+	/**
+	 * Writes the leave-one-out p-values of the supporting targets of the reported TFs. The targets of each TF are
+	 * sorted by decreasing influence, which is the increasing significance when they are left out.
+	 */
+	public void write(String file, List<ResultListToGraph.Row> results) throws IOException
+	{
+		BufferedWriter writer = Files.newBufferedWriter(Paths.get(file));
+		writer.write("TF\tChange\tP-val\tTarget\tLeave-one-out P-val");
+
+		for (ResultListToGraph.Row row : results)
+		{
+			int k = 2 * tfIndex.get(representatives.get(row.tf)) + (row.activity == 1 ? 0 : 1);
+
+			Integer[] order = new Integer[supporters[k].length];
+			for (int j = 0; j < order.length; j++)
+			{
+				order[j] = j;
+			}
+			Arrays.sort(order, Comparator.comparingDouble((Integer j) -> -getPValue(k, j)));
+
+			for (int j : order)
+			{
+				writer.write("\n" + row.tf + "\t" + (row.activity == 1 ? "activated" : "inhibited") + "\t" + row.p +
+					"\t" + supporters[k][j] + "\t" + getPValue(k, j));
+			}
+		}
+
+		writer.close();
+	}
+}
@@ -7,7 +7,6 @@ import org.panda.utility.Kronometre;
 import org.panda.utility.Tuple;
 import org.panda.utility.statistics.Binomial;
 import org.panda.utility.statistics.Correlation;
-import org.panda.utility.statistics.FDR;
 import org.panda.utility.statistics.Summary;
 
 import java.io.*;
@@ -119,26 +118,26 @@ public class TargetSignAnalyzer
 		
 		// Detect significantly deviated
 		
-		Map<String, Double> biasPval = new HashMap<>();
-		Map<String, Double> biasLimit = new HashMap<>();
+		String[] factors = fAgr.keySet().stream().filter(f -> fAgr.get(f) + fDis.get(f) > 0).toArray(String[]::new);
+		double[] biasPval = new double[factors.length];
+		double[] biasLimit = new double[factors.length];
 		Set<String> posBias = new HashSet<>();
-		for (String factor : fAgr.keySet())
+		for (int i = 0; i < factors.length; i++)
 		{
-			int agree = fAgr.get(factor);
-			int confl = fDis.get(factor);
-			int total = agree + confl;
-			if (total > 0)
-			{
-				if (agree > confl)
-				{
-					posBias.add(factor);
-				}
+			int agree = fAgr.get(factors[i]);
+			int confl = fDis.get(factors[i]);
 
-				biasPval.put(factor, Binomial.getPval(agree, confl));
-				biasLimit.put(factor, Binomial.getPval(total, 0));
+			if (agree > confl)
+			{
+				posBias.add(factors[i]);
 			}
+
+			biasPval[i] = Binomial.getPval(agree, confl);
+			biasLimit[i] = Binomial.getPval(agree + confl, 0);
 		}
-		Set<String> select = new HashSet<>(FDR.select(biasPval, biasLimit, fdrThr));
+
+		BitSet selected = PrimitiveFDR.control(biasPval, biasLimit, fdrThr).getSelected();
+		Set<String> select = selected.stream().mapToObj(i -> factors[i]).collect(Collectors.toSet());
 
 		// Write down agree/conflict numbers
 		
@@ -193,26 +192,34 @@ public class TargetSignAnalyzer
 
 	void assignDecisions(Map<String, Map<String, Pair>> cntMap, double fdrThr)
 	{
+		// pos + neg is bounded by the number of studies, so all possible p-values fit in a small table
+		int max = cntMap.values().stream().map(Map::values).flatMap(Collection::stream)
+			.mapToInt(pair -> pair.pos + pair.neg).max().orElse(0);
+
+		BinomialPvalTable table = new BinomialPvalTable(max);
+
 		for (String factor : cntMap.keySet())
 		{
-			Map<String, Pair> fCnt = cntMap.get(factor);
+			Pair[] pairs = cntMap.get(factor).values().toArray(new Pair[0]);
 
-			Map<String, Double> pvals = new HashMap<>();
-			Map<String, Double> limits = new HashMap<>();
+			double[] pvals = new double[pairs.length];
+			double[] limits = new double[pairs.length];
 
-			for (String target : fCnt.keySet())
+			for (int i = 0; i < pairs.length; i++)
 			{
-				Pair pair = fCnt.get(target);
-				pvals.put(target, pair.getBinomialPvalue());
-				limits.put(target, pair.getMaxPossibleBinomPval());
+				pvals[i] = table.getPval(pairs[i].pos, pairs[i].neg);
+				limits[i] = table.getMaxPossiblePval(pairs[i].pos + pairs[i].neg);
 			}
 
-			double thr = FDR.getPValueThreshold(pvals, limits, fdrThr);
-			pvals.keySet().stream().filter(t -> pvals.get(t) < thr).forEach(t ->
+			double thr = PrimitiveFDR.getPValueThreshold(pvals, limits, fdrThr);
+
+			for (int i = 0; i < pairs.length; i++)
 			{
-				Pair pair = fCnt.get(t);
-				pair.consensus = (pair.pos > pair.neg) ? 1 : -1;
-			});
+				if (pvals[i] < thr)
+				{
+					pairs[i].consensus = (pairs[i].pos > pairs[i].neg) ? 1 : -1;
+				}
+			}
 		}
 	}
 
@@ -259,7 +266,6 @@ public class TargetSignAnalyzer
 	Map<String, Integer> getDiscretizedExpressions(String factor, Set<String> targets, Map<String, double[]> exps,
 		double fdrThr, double expStdevThr)
 	{
-		Map<String, Double> pvals = new HashMap<>();
 		Map<String, Integer> directions = new HashMap<>();
 
 		double[] fval = exps.get(factor);
@@ -268,6 +274,9 @@ public class TargetSignAnalyzer
 		{
 			if (Summary.stdev(fval) < expStdevThr) return null;
 
+			List<String> tested = new ArrayList<>();
+			double[] pvals = new double[targets.size()];
+
 			for (String target : targets)
 			{
 				double[] tval = exps.get(target);
@@ -275,15 +284,19 @@ public class TargetSignAnalyzer
 				{
 					double[][] v = ArrayUtil.trimNaNs(fval, tval);
 					Tuple cor = Correlation.pearson(v[0], v[1]);
-					pvals.put(target, cor.p);
+					pvals[tested.size()] = cor.p;
+					tested.add(target);
 					if (cor.v != 0) directions.put(target, (int) Math.signum(cor.v));
 				}
 			}
 
-			if (!pvals.isEmpty())
+			if (!tested.isEmpty())
 			{
-				double thr = FDR.getPValueThreshold(pvals, null, fdrThr);
-				pvals.keySet().stream().filter(t -> pvals.get(t) > thr).forEach(directions::remove);
+				BitSet selected = PrimitiveFDR.control(Arrays.copyOf(pvals, tested.size()), null, fdrThr).getSelected();
+				for (int i = 0; i < tested.size(); i++)
+				{
+					if (!selected.get(i)) directions.remove(tested.get(i));
+				}
 			}
 		}
 		return directions;
@@ -357,15 +370,5 @@ public class TargetSignAnalyzer
 			pos = 0;
 			neg = 0;
 		}
-
-		double getBinomialPvalue()
-		{
-			return Binomial.getPval(pos, neg);
-		}
-
-		double getMaxPossibleBinomPval()
-		{
-			return Binomial.getPval(pos + neg, 0);
-		}
 	}
 }
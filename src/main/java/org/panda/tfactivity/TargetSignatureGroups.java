@@ -0,0 +1,77 @@
+package org.panda.tfactivity;
+
+import java.util.*;
+
+/**
+ * Groups the TFs that have exactly the same targets (with the same signs, for signed networks), such as paralog
+ * families. Statistics are computed once on a reduced network that contains one representative TF per group, and
+ * then copied to the other members of the group.
+ *
+ * @param <V> type of the target signature of a TF, compared with equals and hashCode
+ * @author Ozgun Babur
+ */
+public class TargetSignatureGroups<V>
+{
+	/**
+	 * Maps representative TFs to all members of their group, including themselves.
+	 */
+	Map<String, List<String>> groups;
+
+	/**
+	 * The network with only the representative TFs.
+	 */
+	Map<String, V> reduced;
+
+	public TargetSignatureGroups(Map<String, V> network)
+	{
+		Map<V, String> signatureToRep = new HashMap<>();
+		groups = new HashMap<>();
+		reduced = new HashMap<>();
+
+		// sorting makes the representative selection deterministic
+		List<String> tfs = new ArrayList<>(network.keySet());
+		Collections.sort(tfs);
+
+		for (String tf : tfs)
+		{
+			V targets = network.get(tf);
+			String rep = signatureToRep.get(targets);
+
+			if (rep == null)
+			{
+				signatureToRep.put(targets, tf);
+				reduced.put(tf, targets);
+				groups.put(tf, new ArrayList<>());
+				rep = tf;
+			}
+
+			groups.get(rep).add(tf);
+		}
+	}
+
+	/**
+	 * Gets the network with one representative TF per group.
+	 */
+	public Map<String, V> getReducedNetwork()
+	{
+		return reduced;
+	}
+
+	/**
+	 * Copies the values of the representative TFs to all members of their groups.
+	 */
+	public <T> Map<String, T> expand(Map<String, T> repValues)
+	{
+		Map<String, T> map = new HashMap<>();
+		repValues.forEach((rep, value) -> groups.get(rep).forEach(tf -> map.put(tf, value)));
+		return map;
+	}
+
+	/**
+	 * Gets the number of TFs that are not evaluated because they share the targets of another TF.
+	 */
+	public int getSavedCount()
+	{
+		return groups.values().stream().mapToInt(List::size).sum() - groups.size();
+	}
+}
@@ -13,6 +13,12 @@ public class TwoGroupsSampleNames
 	String[] control;
 	String[] test;
 
+	/**
+	 * Column indices of the groups in the matrix header that the names were last resolved against.
+	 */
+	int[] controlIndices;
+	int[] testIndices;
+
 	public TwoGroupsSampleNames(String filename) throws IOException
 	{
 		Set<String> controlSet = new HashSet<>();
@@ -40,6 +46,37 @@ public class TwoGroupsSampleNames
 		return test;
 	}
 
+	/**
+	 * Resolves the sample names to their column indices in the given matrix header, once per contrast, so that the
+	 * group values can be read from the matrix rows directly. Samples that are not in the header are skipped.
+	 */
+	public void resolve(String[] header)
+	{
+		Map<String, Integer> columns = new HashMap<>();
+		for (int i = 0; i < header.length; i++)
+		{
+			columns.put(header[i], i);
+		}
+
+		controlIndices = resolve(control, columns);
+		testIndices = resolve(test, columns);
+	}
+
+	private int[] resolve(String[] names, Map<String, Integer> columns)
+	{
+		return Arrays.stream(names).map(columns::get).filter(Objects::nonNull).mapToInt(Integer::intValue).toArray();
+	}
+
+	public int[] getControlIndices()
+	{
+		return controlIndices;
+	}
+
+	public int[] getTestIndices()
+	{
+		return testIndices;
+	}
+
 	public void filterOutMissingSamples(Set<String> available)
 	{
 		control = filterMissing(control, available);
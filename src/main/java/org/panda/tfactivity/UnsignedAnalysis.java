@@ -1,7 +1,6 @@
 package org.panda.tfactivity;
 
 import org.panda.utility.Progress;
-import org.panda.utility.statistics.FDR;
 import org.panda.utility.statistics.FishersExactTest;
 
 import java.io.BufferedWriter;
@@ -26,6 +25,16 @@ public class UnsignedAnalysis
 	 */
 	DiscreteExpressionProvider expProv;
 
+	/**
+	 * Reported results, as they are written to the output file.
+	 */
+	List<ResultListToGraph.Row> results;
+
+	/**
+	 * Metrics of the run, to record the number of tests. Can be null.
+	 */
+	RunMetrics metrics;
+
 	public UnsignedAnalysis(Map<String, Set<String>> network, DiscreteExpressionProvider expProv)
 	{
 		this.network = network;
@@ -34,8 +43,57 @@ public class UnsignedAnalysis
 
 	public void run(String outFile, double fdrThr) throws IOException
 	{
-		Map<String, Double> pValues = getActivityPValues(network, expProv);
-		writeResults(outFile, network, expProv, pValues, fdrThr);
+		Map<String, Double> pValues = calculatePValues();
+		writeResults(outFile, pValues, fdrThr);
+	}
+
+	public void setMetrics(RunMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Calculates the enrichment p-values of the TFs.
+	 */
+	public Map<String, Double> calculatePValues()
+	{
+		// TFs with identical targets are evaluated only once
+		TargetSignatureGroups<Set<String>> groups = new TargetSignatureGroups<>(network);
+		Map<String, Set<String>> reduced = groups.getReducedNetwork();
+
+		if (metrics != null)
+		{
+			metrics.record("unsigned.tfs", network.size());
+			metrics.record("unsigned.tests", reduced.size());
+			metrics.record("unsigned.deduplicated", groups.getSavedCount());
+		}
+		return groups.expand(getActivityPValues(reduced, expProv));
+	}
+
+	/**
+	 * Writes the results for the given p-values at the FDR threshold. The given p-values can be for a subset of the
+	 * TFs.
+	 */
+	public void writeResults(String outFile, Map<String, Double> pValues, double fdrThr) throws IOException
+	{
+		writeResults(outFile, pValues, getSupporterGenes(), fdrThr);
+	}
+
+	/**
+	 * Gets the targets of each TF that support its activity change. Independent of the p-values, so it can be
+	 * calculated in parallel.
+	 */
+	public Map<String, List<String>> getSupporterGenes()
+	{
+		return getActivitySupporterGenes(network, expProv);
+	}
+
+	/**
+	 * Gets the reported results of the last run.
+	 */
+	public List<ResultListToGraph.Row> getResults()
+	{
+		return results;
 	}
 
 	private Map<String, Double> getActivityPValues(Map<String, Set<String>> network,
@@ -88,21 +146,29 @@ public class UnsignedAnalysis
 		return evidenceMap;
 	}
 
-	private void writeResults(String file, Map<String, Set<String>> network,
-		DiscreteExpressionProvider expProv, Map<String, Double> pMap, double fdrThr) throws IOException
+	public void writeResults(String file, Map<String, Double> pMap,
+		Map<String, List<String>> support, double fdrThr) throws IOException
 	{
-		Map<String, Double> qMap = FDR.getQVals(pMap, null);
+		String[] tfs = pMap.keySet().stream().sorted().toArray(String[]::new);
+		double[] p = new double[tfs.length];
+		for (int i = 0; i < tfs.length; i++)
+		{
+			p[i] = pMap.get(tfs[i]);
+		}
 
-		List<String> select = FDR.select(pMap, null, fdrThr);
+		PrimitiveFDR.Result fdr = PrimitiveFDR.control(p, null, fdrThr);
 
-		Map<String, List<String>> support = getActivitySupporterGenes(network, expProv);
+		results = new ArrayList<>();
 
 		BufferedWriter writer = Files.newBufferedWriter(Paths.get(file));
 		writer.write("TF\tP-val\tQ-val\tSupporting targets");
 
-		for (String tf : select)
+		for (int k : fdr.getSelectedInOrder())
 		{
-			writer.write("\n" + tf + "\t" + pMap.get(tf) + "\t" + qMap.get(tf) + "\t" + support.get(tf));
+			String tf = tfs[k];
+			writer.write("\n" + tf + "\t" + p[k] + "\t" + fdr.getQVal(k) + "\t" + support.get(tf));
+
+			results.add(new ResultListToGraph.Row(tf, p[k], null, support.get(tf)));
 		}
 
 		writer.close();
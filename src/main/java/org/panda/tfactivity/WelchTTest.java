@@ -0,0 +1,88 @@
+package org.panda.tfactivity;
+
+/**
+ * Welch's t-test on group summaries, for the callers that calculate the group means and variances without building the
+ * value arrays.
+ *
+ * @author Ozgun Babur
+ */
+public class WelchTTest
+{
+	/**
+	 * Two-tailed p-value of Welch's t-test from the group summaries. NaN when the groups are too small or have no
+	 * variance.
+	 */
+	public static double getPValue(double m1, double v1, int n1, double m2, double v2, int n2)
+	{
+		if (n1 < 2 || n2 < 2) return Double.NaN;
+
+		double a = Math.max(v1, 0) / n1;
+		double b = Math.max(v2, 0) / n2;
+		if (a + b == 0) return Double.NaN;
+
+		double t = (m2 - m1) / Math.sqrt(a + b);
+		double df = (a + b) * (a + b) / (a * a / (n1 - 1) + b * b / (n2 - 1));
+
+		return regularizedBeta(df / (df + t * t), df / 2, 0.5);
+	}
+
+	/**
+	 * Regularized incomplete beta function, evaluated with its continued fraction.
+	 */
+	static double regularizedBeta(double x, double a, double b)
+	{
+		if (x <= 0) return 0;
+		if (x >= 1) return 1;
+
+		// the continued fraction converges fast for x below this point, use the symmetry otherwise
+		if (x > (a + 1) / (a + b + 2)) return 1 - regularizedBeta(1 - x, b, a);
+
+		double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x) + b * Math.log(1 - x)) / a;
+
+		// Lentz's algorithm
+		double tiny = 1E-300;
+		double f = 1, c = 1, d = 0;
+
+		for (int i = 0; i <= 300; i++)
+		{
+			int m = i / 2;
+			double num;
+			if (i == 0) num = 1;
+			else if (i % 2 == 0) num = m * (b - m) * x / ((a + 2 * m - 1) * (a + 2 * m));
+			else num = -((a + m) * (a + b + m) * x) / ((a + 2 * m) * (a + 2 * m + 1));
+
+			d = 1 + num * d;
+			if (Math.abs(d) < tiny) d = tiny;
+			d = 1 / d;
+
+			c = 1 + num / c;
+			if (Math.abs(c) < tiny) c = tiny;
+
+			double cd = c * d;
+			f *= cd;
+
+			if (Math.abs(1 - cd) < 1E-12) break;
+		}
+
+		return front * (f - 1);
+	}
+
+	/**
+	 * Lanczos approximation of the logarithm of the gamma function.
+	 */
+	static double logGamma(double x)
+	{
+		double[] coef = {76.18009172947146, -86.50532032941677, 24.01409824083091, -1.231739572450155,
+			0.1208650973866179E-2, -0.5395239384953E-5};
+
+		double y = x;
+		double tmp = x + 5.5;
+		tmp -= (x + 0.5) * Math.log(tmp);
+		double ser = 1.000000000190015;
+		for (double c : coef)
+		{
+			ser += c / ++y;
+		}
+		return -tmp + Math.log(2.5066282746310005 * ser / x);
+	}
+}
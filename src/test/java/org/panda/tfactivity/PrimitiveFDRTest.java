@@ -0,0 +1,129 @@
+package org.panda.tfactivity;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Ozgun Babur
+ */
+public class PrimitiveFDRTest
+{
+	@Test
+	public void selectsByBenjaminiHochberg()
+	{
+		double[] p = {0.03, 0.01, 0.5, 0.04, 0.02};
+
+		PrimitiveFDR.Result r = PrimitiveFDR.control(p, null, 0.05);
+		assertArrayEquals(new double[]{0.05, 0.05, 0.5, 0.05, 0.05}, r.getQVals(), 1E-12);
+		assertArrayEquals(new boolean[]{true, true, false, true, true}, mask(r.getSelected(), p.length));
+		assertArrayEquals(new int[]{1, 4, 0, 3}, r.getSelectedInOrder());
+
+		assertEquals(0.27, PrimitiveFDR.getPValueThreshold(p, null, 0.05), 1E-12);
+	}
+
+	@Test
+	public void selectsTiesTogether()
+	{
+		double[] p = {0.03, 0.01, 0.2, 0.03};
+
+		PrimitiveFDR.Result r = PrimitiveFDR.control(p, null, 0.05);
+		assertArrayEquals(new double[]{0.04, 0.04, 0.2, 0.04}, r.getQVals(), 1E-12);
+		assertArrayEquals(new boolean[]{true, true, false, true}, mask(r.getSelected(), p.length));
+
+		// the threshold is between the tied p-values and the next one
+		assertEquals(0.115, PrimitiveFDR.getPValueThreshold(p, null, 0.05), 1E-12);
+	}
+
+	@Test
+	public void doesNotCountNaNs()
+	{
+		double[] p = {0.03, Double.NaN, 0.01, 0.5, 0.04, Double.NaN, 0.02};
+
+		PrimitiveFDR.Result r = PrimitiveFDR.control(p, null, 0.05);
+		assertEquals(0.05, r.getQVal(0), 1E-12);
+		assertTrue(Double.isNaN(r.getQVal(1)));
+		assertArrayEquals(new boolean[]{true, false, true, false, true, false, true}, mask(r.getSelected(), p.length));
+
+		assertEquals(0.27, PrimitiveFDR.getPValueThreshold(p, null, 0.05), 1E-12);
+	}
+
+	@Test
+	public void countsOnlyTestsThatCanReachThePValue()
+	{
+		double[] p = {0.001, 0.01, 0.04};
+		double[] limits = {0.0005, 0.005, 0.2};
+
+		// without the limits the last test is not selected at 0.03, with them only two tests count for it
+		assertEquals(2, PrimitiveFDR.control(p, null, 0.03).getSelected().cardinality());
+		assertEquals(3, PrimitiveFDR.control(p, limits, 0.03).getSelected().cardinality());
+		assertEquals(Math.nextUp(0.04), PrimitiveFDR.getPValueThreshold(p, limits, 0.03), 0);
+	}
+
+	/**
+	 * Compares the selection to the step-up procedure over string keyed maps, as in the FDR utility that this class
+	 * replaced, on random p-values with many ties.
+	 */
+	@Test
+	public void matchesMapBasedSelection()
+	{
+		Random r = new Random(5);
+
+		for (int trial = 0; trial < 200; trial++)
+		{
+			int n = 1 + r.nextInt(50);
+			double[] p = new double[n];
+			Map<String, Double> map = new HashMap<>();
+			for (int i = 0; i < n; i++)
+			{
+				p[i] = Math.round(Math.pow(r.nextDouble(), 3) * 100) / 100D;
+				map.put("T" + i, p[i]);
+			}
+			double fdr = 0.01 + r.nextDouble() * 0.2;
+
+			Set<String> expected = selectWithMaps(map, fdr);
+
+			BitSet selected = PrimitiveFDR.control(p, null, fdr).getSelected();
+			double thr = PrimitiveFDR.getPValueThreshold(p, null, fdr);
+
+			for (int i = 0; i < n; i++)
+			{
+				assertEquals("control " + trial, expected.contains("T" + i), selected.get(i));
+				assertEquals("threshold " + trial, expected.contains("T" + i), p[i] <= thr);
+			}
+		}
+	}
+
+	private Set<String> selectWithMaps(Map<String, Double> map, double fdr)
+	{
+		List<String> keys = new ArrayList<>(map.keySet());
+		keys.sort(Comparator.comparing(map::get));
+
+		for (int i = keys.size() - 1; i >= 0; i--)
+		{
+			double p = map.get(keys.get(i));
+			if (p * keys.size() / (i + 1) <= fdr)
+			{
+				Set<String> select = new HashSet<>();
+				for (String key : keys)
+				{
+					if (map.get(key) <= p) select.add(key);
+				}
+				return select;
+			}
+		}
+		return Collections.emptySet();
+	}
+
+	private boolean[] mask(BitSet set, int n)
+	{
+		boolean[] b = new boolean[n];
+		for (int i = 0; i < n; i++)
+		{
+			b[i] = set.get(i);
+		}
+		return b;
+	}
+}
@@ -0,0 +1,82 @@
+package org.panda.tfactivity;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Ozgun Babur
+ */
+public class TargetInfluenceTest
+{
+	/**
+	 * The leave-one-out p-value of a target that is shared with another TF should be the p-value of a seeded run on
+	 * the network without that edge, as the shuffled gene pool does not change.
+	 */
+	@Test
+	public void matchesNaiveRerunForSharedTargets()
+	{
+		Random r = new Random(7);
+		Map<String, Integer> changes = new HashMap<>();
+		for (int g = 0; g < 200; g++)
+		{
+			changes.put("G" + g, r.nextDouble() < 0.4 ? (r.nextBoolean() ? 1 : -1) : 0);
+		}
+		DiscreteExpressionProvider expProv = changes::get;
+
+		Map<String, Map<String, Integer>> network = new HashMap<>();
+		for (int t = 0; t < 10; t++)
+		{
+			Map<String, Integer> targets = new HashMap<>();
+			for (int k = 0; k < 25; k++)
+			{
+				targets.put("G" + r.nextInt(200), r.nextBoolean() ? 1 : -1);
+			}
+			network.put("TF" + t, targets);
+		}
+
+		int iterations = 300;
+		long seed = 11;
+
+		SignedAnalysis sa = new SignedAnalysis(network, expProv);
+		sa.setSeed(seed);
+		sa.setTargetInfluence(true);
+		sa.calculatePValues(iterations);
+		TargetInfluence influence = sa.influence;
+
+		int compared = 0;
+		for (String tf : Arrays.asList("TF0", "TF1"))
+		{
+			for (int d = 0; d < 2; d++)
+			{
+				int k = 2 * influence.tfIndex.get(tf) + d;
+
+				for (int j = 0; j < influence.supporters[k].length; j++)
+				{
+					String target = influence.supporters[k][j];
+					if (!isShared(network, tf, target)) continue;
+
+					Map<String, Map<String, Integer>> reduced = new HashMap<>();
+					network.forEach((f, targets) -> reduced.put(f, new HashMap<>(targets)));
+					reduced.get(tf).remove(target);
+
+					SignedAnalysis naive = new SignedAnalysis(reduced, expProv);
+					naive.setSeed(seed);
+					double expected = naive.calculatePValues(iterations).get(tf)[d];
+
+					assertEquals(tf + " without " + target, expected, influence.getPValue(k, j), 0);
+					compared++;
+				}
+			}
+		}
+		assertTrue(compared > 0);
+	}
+
+	private boolean isShared(Map<String, Map<String, Integer>> network, String tf, String target)
+	{
+		return network.keySet().stream().anyMatch(f -> !f.equals(tf) && network.get(f).containsKey(target));
+	}
+}